@@ -1,15 +1,106 @@
 package org.jenkinsci.plugins.workflowhttp.cps;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import java.time.Instant;
-import java.util.concurrent.ConcurrentHashMap;
 
 public final class CacheEntry {
-    public static final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<>();
+    /**
+     * Whether to keep cached scripts gzipped in memory, trading some CPU for heap: the decompressed script is only
+     * kept softly, so hits decompress it again once the GC has reclaimed it.
+     */
+    static final boolean COMPRESSED = Boolean.getBoolean(CacheEntry.class.getName() + ".COMPRESSED");
+
+    public static final ScriptCache cache = new ScriptCache(
+            ScriptCache.MAX_ENTRIES, ScriptCache.MAX_BYTES, DiskCache.ENABLED ? DiskCache.inJenkinsHome() : null);
+
     public final Instant expirationDate;
-    public final String script;
+    /** When the script was last fetched or revalidated. */
+    public final Instant fetched;
+    /** The script, possibly shared with entries for other URLs. */
+    public final ScriptBlob blob;
+    /** {@code ETag} of the response the script came from, if any. */
+    @CheckForNull
+    public final String etag;
+    /** {@code Last-Modified} of the response the script came from, if usable as a validator. */
+    @CheckForNull
+    public final String lastModified;
+    /** Hash of the {@link PipelineBundle} the script was read from, if any. */
+    @CheckForNull
+    public final String bundle;
 
     public CacheEntry(Instant expirationDate, String script) {
+        this(expirationDate, script, null, null);
+    }
+
+    public CacheEntry(
+            Instant expirationDate, String script, @CheckForNull String etag, @CheckForNull String lastModified) {
+        this(expirationDate, script, etag, lastModified, COMPRESSED);
+    }
+
+    CacheEntry(
+            Instant expirationDate,
+            String script,
+            @CheckForNull String etag,
+            @CheckForNull String lastModified,
+            boolean compress) {
+        this(expirationDate, Instant.now(), ScriptBlob.of(script, compress), etag, lastModified, null);
+    }
+
+    private CacheEntry(
+            Instant expirationDate,
+            Instant fetched,
+            ScriptBlob blob,
+            @CheckForNull String etag,
+            @CheckForNull String lastModified,
+            @CheckForNull String bundle) {
         this.expirationDate = expirationDate;
-        this.script = script;
+        this.fetched = fetched;
+        this.blob = blob;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.bundle = bundle;
+    }
+
+    /** The same script, revalidated until {@code expirationDate}. */
+    public CacheEntry withExpirationDate(Instant expirationDate) {
+        return new CacheEntry(expirationDate, Instant.now(), blob, etag, lastModified, bundle);
+    }
+
+    /** The same entry, holding an identical script. */
+    CacheEntry withBlob(ScriptBlob blob) {
+        return new CacheEntry(expirationDate, fetched, blob, etag, lastModified, bundle);
+    }
+
+    /** The same entry, fetched at another time. */
+    CacheEntry withFetched(Instant fetched) {
+        return new CacheEntry(expirationDate, fetched, blob, etag, lastModified, bundle);
+    }
+
+    /** The same entry, read from a bundle. */
+    CacheEntry withBundle(@CheckForNull String bundle) {
+        return new CacheEntry(expirationDate, fetched, blob, etag, lastModified, bundle);
+    }
+
+    public String getScript() {
+        return blob.getScript();
+    }
+
+    /** Whether the script is kept compressed. */
+    public boolean isCompressed() {
+        return blob.isCompressed();
+    }
+
+    /** Approximate heap used by the script, were it not shared. */
+    public long getSize() {
+        return blob.getSize();
+    }
+
+    public boolean isExpired() {
+        return expirationDate.isBefore(Instant.now());
+    }
+
+    /** Whether a conditional request can tell if the script changed since it was fetched. */
+    public boolean hasValidators() {
+        return etag != null || lastModified != null;
     }
 }
@@ -1,27 +1,187 @@
 package org.jenkinsci.plugins.workflowhttp.cps;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.EnvVars;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 public class CachingConfiguration {
+    private static final Logger LOGGER = Logger.getLogger(CachingConfiguration.class.getName());
+
+    /** Characters which made a glob of older configurations a regular expression. */
+    private static final String LEGACY_REGEX_CHARACTERS = "[](){}^$|+";
+
     private final int cachingMinutes;
-    private final List<String[]> excludedCases;
+    /** Exclusion rules as entered, each one a {@code &}-separated list of conditions. */
+    private List<String> excludedRules;
+    /**
+     * Exclusion rules of older configurations, as key and glob pairs, which would mean something else
+     * as {@link #excludedRules}, so are still matched as they used to be: see {@link #readResolve}.
+     */
+    private List<String[]> excludedCases;
+
+    private boolean staleWhileRevalidate;
+    private boolean staleIfError;
+    private boolean refreshAhead;
+
+    /** Single-condition rules, merged into one pattern per variable. */
+    private transient Map<String, Pattern> anyMatch;
+    /** Rules with several or negated conditions. */
+    private transient List<Condition[]> compoundRules;
 
     @DataBoundConstructor
     public CachingConfiguration(int cachingMinutes, String excludedCasesString) {
         this.cachingMinutes = cachingMinutes;
-        this.excludedCases = new ArrayList<>();
+        this.excludedRules = new ArrayList<>();
         for (String excludedCase : excludedCasesString.split(" ")) {
-            String[] values = excludedCase.split("=");
-            if (values.length == 2) {
-                this.excludedCases.add(new String[] {values[0], values[1]});
+            if (parseRule(excludedCase) != null) {
+                this.excludedRules.add(excludedCase);
+            }
+        }
+        compile();
+    }
+
+    /**
+     * Migrates the key and glob pairs of older configurations to rules, when they mean the same as
+     * rules. Others, like a key ending with {@code !}, a glob with {@code ,} or {@code &}, or one
+     * using regular expression syntax like {@code [a-z]*}, which older versions accepted, are kept
+     * as they were.
+     */
+    protected Object readResolve() {
+        if (excludedRules == null) {
+            excludedRules = new ArrayList<>();
+            if (excludedCases != null) {
+                List<String[]> legacy = new ArrayList<>();
+                for (String[] pair : excludedCases) {
+                    if (isExpressibleAsRule(pair[0], pair[1])) {
+                        excludedRules.add(pair[0] + "=" + pair[1]);
+                    } else {
+                        legacy.add(pair);
+                    }
+                }
+                excludedCases = legacy;
+            }
+        }
+        if (excludedCases != null && excludedCases.isEmpty()) {
+            excludedCases = null;
+        }
+        compile();
+        return this;
+    }
+
+    private static boolean isExpressibleAsRule(String key, String glob) {
+        if (key.isEmpty() || key.endsWith("!") || key.contains("&") || glob.contains(",") || glob.contains("&")) {
+            return false;
+        }
+        for (int i = 0; i < glob.length(); i++) {
+            if (LEGACY_REGEX_CHARACTERS.indexOf(glob.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void compile() {
+        Map<String, List<String>> alternatives = new LinkedHashMap<>();
+        compoundRules = new ArrayList<>();
+        if (excludedCases != null) {
+            for (String[] pair : excludedCases) {
+                try {
+                    compoundRules.add(new Condition[] {new Condition(pair[0], legacyRegexFromGlob(pair[1]), false)});
+                } catch (PatternSyntaxException x) {
+                    LOGGER.log(Level.WARNING, "Ignoring invalid excluded case " + pair[0] + "=" + pair[1], x);
+                }
+            }
+        }
+        for (String excludedRule : excludedRules) {
+            Condition[] rule = parseRule(excludedRule);
+            if (rule == null) {
+                continue;
+            }
+            if (rule.length == 1 && !rule[0].negated) {
+                alternatives.computeIfAbsent(rule[0].key, k -> new ArrayList<>()).add(rule[0].regex);
+            } else {
+                compoundRules.add(rule);
+            }
+        }
+        anyMatch = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> entry : alternatives.entrySet()) {
+            anyMatch.put(entry.getKey(), Pattern.compile(String.join("|", entry.getValue())));
+        }
+    }
+
+    /**
+     * Parses a rule like {@code KEY=glob}, {@code KEY=glob1,glob2}, {@code KEY!=glob} or several of
+     * those joined by {@code &}, all of which must hold for the rule to match.
+     *
+     * @return the conditions of the rule, or null if it is malformed
+     */
+    @CheckForNull
+    static Condition[] parseRule(String rule) {
+        if (rule.isEmpty()) {
+            return null;
+        }
+        String[] parts = rule.split("&", -1);
+        Condition[] conditions = new Condition[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            int equals = parts[i].indexOf('=');
+            if (equals <= 0 || equals != parts[i].lastIndexOf('=') || equals == parts[i].length() - 1) {
+                return null;
+            }
+            boolean negated = parts[i].charAt(equals - 1) == '!';
+            String key = parts[i].substring(0, negated ? equals - 1 : equals);
+            if (key.isEmpty()) {
+                return null;
+            }
+            List<String> regexes = new ArrayList<>();
+            for (String glob : parts[i].substring(equals + 1).split(",")) {
+                if (!glob.isEmpty()) {
+                    regexes.add(createRegexFromGlob(glob));
+                }
+            }
+            if (regexes.isEmpty()) {
+                return null;
+            }
+            conditions[i] = new Condition(key, String.join("|", regexes), negated);
+        }
+        return conditions;
+    }
+
+    static String createRegexFromGlob(String glob) {
+        StringBuilder out = new StringBuilder("^");
+        for (int i = 0; i < glob.length(); ++i) {
+            final char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    out.append(".*");
+                    break;
+                case '?':
+                    out.append('.');
+                    break;
+                default:
+                    if (!Character.isLetterOrDigit(c)) {
+                        out.append('\\');
+                    }
+                    out.append(c);
             }
         }
+        out.append('$');
+        return out.toString();
     }
 
-    private static String createRegexFromGlob(String glob) {
+    /**
+     * Translates a glob as older versions did: only {@code *}, {@code ?}, {@code .} and backslashes
+     * are escaped, so other regular expression syntax keeps its meaning.
+     */
+    private static String legacyRegexFromGlob(String glob) {
         StringBuilder out = new StringBuilder("^");
         for (int i = 0; i < glob.length(); ++i) {
             final char c = glob.charAt(i);
@@ -54,24 +214,103 @@ public class CachingConfiguration {
         return cachingMinutes * 60;
     }
 
+    /** Whether an expired pipeline is used right away, while a fresh copy is fetched in the background. */
+    public boolean isStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    @DataBoundSetter
+    public void setStaleWhileRevalidate(boolean staleWhileRevalidate) {
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /** Whether an expired pipeline is used when a fresh copy cannot be fetched. */
+    public boolean isStaleIfError() {
+        return staleIfError;
+    }
+
+    @DataBoundSetter
+    public void setStaleIfError(boolean staleIfError) {
+        this.staleIfError = staleIfError;
+    }
+
+    /** Whether the pipeline is refreshed in the background shortly before it expires, if used often. */
+    public boolean isRefreshAhead() {
+        return refreshAhead;
+    }
+
+    @DataBoundSetter
+    public void setRefreshAhead(boolean refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
     public String getExcludedCasesString() {
+        return String.join(" ", excludedRules);
+    }
+
+    /** The exclusion rules of an older configuration kept as they were, as {@code KEY=glob} pairs. */
+    public String getLegacyExcludedCasesString() {
         List<String> results = new ArrayList<>();
-        for (String[] pair : excludedCases) {
-            results.add(pair[0] + "=" + pair[1]);
+        if (excludedCases != null) {
+            for (String[] pair : excludedCases) {
+                results.add(pair[0] + "=" + pair[1]);
+            }
         }
         return String.join(" ", results);
     }
 
+    @DataBoundSetter
+    public void setLegacyExcludedCasesString(String legacyExcludedCasesString) {
+        List<String[]> pairs = new ArrayList<>();
+        for (String excludedCase : legacyExcludedCasesString.split(" ")) {
+            String[] values = excludedCase.split("=");
+            if (values.length == 2) {
+                pairs.add(new String[] {values[0], values[1]});
+            }
+        }
+        excludedCases = pairs.isEmpty() ? null : pairs;
+        compile();
+    }
+
     public boolean isExcluded(EnvVars envVars) {
-        for (String[] pair : excludedCases) {
-            String key = pair[0];
-            String value = pair[1];
-            String pattern = createRegexFromGlob(value);
-            String envVar = envVars.get(key);
-            if (envVar != null && envVar.matches(pattern)) {
+        for (Map.Entry<String, Pattern> entry : anyMatch.entrySet()) {
+            String envVar = envVars.get(entry.getKey());
+            if (envVar != null && entry.getValue().matcher(envVar).matches()) {
+                return true;
+            }
+        }
+        for (Condition[] rule : compoundRules) {
+            boolean matches = true;
+            for (Condition condition : rule) {
+                if (!condition.matches(envVars)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
                 return true;
             }
         }
         return false;
     }
+
+    static final class Condition {
+        final String key;
+        final String regex;
+        final boolean negated;
+        private final Pattern pattern;
+
+        Condition(String key, String regex, boolean negated) {
+            this.key = key;
+            this.regex = regex;
+            this.negated = negated;
+            this.pattern = Pattern.compile(regex);
+        }
+
+        /** A negated condition holds when the variable is unset too. */
+        boolean matches(EnvVars envVars) {
+            String envVar = envVars.get(key);
+            return negated != (envVar != null && pattern.matcher(envVar).matches());
+        }
+    }
 }
@@ -0,0 +1,113 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.AbortException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops connecting to a host which keeps failing. After {@link #FAILURE_THRESHOLD} consecutive
+ * failures the breaker opens and attempts fail immediately; once {@link #OPEN_DURATION} has passed,
+ * a single attempt is let through as a probe, and its outcome closes or reopens the breaker.
+ */
+final class CircuitBreaker {
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    static final int FAILURE_THRESHOLD = Integer.getInteger(CircuitBreaker.class.getName() + ".FAILURE_THRESHOLD", 5);
+    static final long OPEN_DURATION =
+            Long.getLong(CircuitBreaker.class.getName() + ".OPEN_DURATION", TimeUnit.SECONDS.toMillis(30));
+
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String host;
+    private final int failureThreshold;
+    private final long openDuration;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openUntil;
+
+    CircuitBreaker(String host, int failureThreshold, long openDuration) {
+        this.host = host;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /** The breaker for a host, as given by {@link RobustHTTPClient#hostOf}, or null if disabled. */
+    @CheckForNull
+    static CircuitBreaker forHost(@CheckForNull String host) {
+        if (FAILURE_THRESHOLD <= 0 || host == null) {
+            return null;
+        }
+        return breakers.computeIfAbsent(host, h -> new CircuitBreaker(h, FAILURE_THRESHOLD, OPEN_DURATION));
+    }
+
+    /**
+     * Asks to make an attempt.
+     *
+     * @throws AbortException if the breaker is open, or half-open with a probe already in progress
+     */
+    synchronized void acquire() throws AbortException {
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntil) {
+            state = State.HALF_OPEN;
+            LOGGER.log(Level.FINE, "Probing {0}", host);
+            return;
+        }
+        if (state != State.CLOSED) {
+            throw new AbortException(
+                    "Not connecting to " + host + " after " + failures + " consecutive failures, will try again later");
+        }
+    }
+
+    /**
+     * Records the outcome of an attempt let through by {@link #acquire}. Network errors, timeouts and
+     * server errors count as failures; other responses, like {@code 404 Not Found} or one too large,
+     * show that the host is up. Anything else, like an interrupted attempt, says nothing about the host.
+     */
+    synchronized void record(@CheckForNull Throwable failure) {
+        if (failure instanceof RobustHTTPClient.HttpStatusException) {
+            int code = ((RobustHTTPClient.HttpStatusException) failure).statusCode;
+            if (code < 500 && code != 429) {
+                failure = null;
+            }
+        } else if (failure instanceof RobustHTTPClient.ResponseTooLargeException) {
+            failure = null;
+        }
+        if (failure == null) {
+            if (state != State.CLOSED) {
+                LOGGER.log(Level.INFO, "{0} is reachable again", host);
+            }
+            state = State.CLOSED;
+            failures = 0;
+        } else if (failure instanceof IOException) {
+            failures++;
+            if (state == State.HALF_OPEN || failures >= failureThreshold) {
+                if (state == State.CLOSED) {
+                    LOGGER.log(
+                            Level.WARNING,
+                            "Not connecting to {0} for {1}ms after {2} consecutive failures",
+                            new Object[] {host, openDuration, failures});
+                }
+                state = State.OPEN;
+                openUntil = System.currentTimeMillis() + openDuration;
+            }
+        } else if (state == State.HALF_OPEN) {
+            // let another attempt probe the host
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
@@ -44,16 +44,10 @@ import hudson.security.ACL;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 import jenkins.model.Jenkins;
-import org.apache.commons.io.IOUtils;
-import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.core5.http.HttpHeaders;
 import org.jenkinsci.Symbol;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowExecution;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowFactoryAction2;
@@ -71,6 +65,12 @@ public class CpsHttpFlowDefinition extends FlowDefinition {
     private int retryCount;
     private CachingConfiguration cachingConfiguration;
     private String credentialsId;
+    /** Other URLs serving the same pipeline, separated by whitespace. */
+    private String mirrorUrls;
+    /** Whether to also ask the next of {@link #mirrorUrls} when one is slower than usual to respond. */
+    private boolean hedgeRequests;
+    /** Path of the pipeline inside the archive at {@link #scriptUrl}, if a bundle is served. */
+    private String bundleEntry;
 
     @Deprecated
     public CpsHttpFlowDefinition(
@@ -155,6 +155,52 @@ public class CpsHttpFlowDefinition extends FlowDefinition {
         this.credentialsId = Util.fixEmpty(credentialsId);
     }
 
+    public String getMirrorUrls() {
+        return mirrorUrls;
+    }
+
+    @DataBoundSetter
+    public void setMirrorUrls(String mirrorUrls) {
+        this.mirrorUrls = Util.fixEmptyAndTrim(mirrorUrls);
+    }
+
+    public boolean isHedgeRequests() {
+        return hedgeRequests;
+    }
+
+    @DataBoundSetter
+    public void setHedgeRequests(boolean hedgeRequests) {
+        this.hedgeRequests = hedgeRequests;
+    }
+
+    public String getBundleEntry() {
+        return bundleEntry;
+    }
+
+    @DataBoundSetter
+    public void setBundleEntry(String bundleEntry) {
+        this.bundleEntry = Util.fixEmptyAndTrim(bundleEntry);
+    }
+
+    /** How to fetch the pipeline, with the URLs expanded from {@code envVars}. */
+    ScriptRequest newRequest(EnvVars envVars) {
+        List<String> mirrors = new ArrayList<>();
+        if (mirrorUrls != null) {
+            for (String mirror : mirrorUrls.split("\\s+")) {
+                mirrors.add(envVars.expand(mirror));
+            }
+        }
+        return new ScriptRequest(
+                        envVars.expand(scriptUrl),
+                        setAcceptHeader,
+                        setKeyHeader,
+                        setValueHeader,
+                        credentialsId,
+                        retryCount)
+                .withMirrors(mirrors, hedgeRequests)
+                .withBundleEntry(bundleEntry);
+    }
+
     @Override
     public CpsFlowExecution create(FlowExecutionOwner owner, TaskListener listener, List<? extends Action> actions)
             throws Exception {
@@ -173,35 +219,16 @@ public class CpsHttpFlowDefinition extends FlowDefinition {
         Run<?, ?> build = (Run<?, ?>) _build;
 
         EnvVars envVars = build.getEnvironment(listener);
-        String expandedScriptUrl = envVars.expand(scriptUrl);
-        listener.getLogger().println("Fetching pipeline from " + expandedScriptUrl);
-
-        RobustHTTPClient client = new RobustHTTPClient();
-        client.setStopAfterAttemptNumber(retryCount + 1);
-        client.setWaitMultiplier(1, TimeUnit.SECONDS);
-
-        HttpGet httpGet = new HttpGet(expandedScriptUrl);
-        if (setAcceptHeader != null && !setAcceptHeader.isEmpty()) {
-            httpGet.setHeader(HttpHeaders.ACCEPT, setAcceptHeader);
-        }
-        if (setKeyHeader != null && !setKeyHeader.isEmpty() && setValueHeader != null && !setValueHeader.isEmpty()) {
-            httpGet.setHeader(setKeyHeader, setValueHeader);
-        }
-        if (credentialsId != null) {
-            UsernamePasswordCredentials credentials = CredentialsMatchers.firstOrNull(
-                    CredentialsProvider.lookupCredentials(
-                            UsernamePasswordCredentials.class, Jenkins.get(), ACL.SYSTEM, Collections.emptyList()),
-                    CredentialsMatchers.withId(credentialsId));
-            if (credentials != null) {
-                String encoded = Base64.getEncoder()
-                        .encodeToString((credentials.getUsername() + ":" + credentials.getPassword())
-                                .getBytes(StandardCharsets.UTF_8));
-                httpGet.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + encoded);
-                CredentialsProvider.track(build, credentials);
-            }
+        ScriptRequest request = newRequest(envVars);
+        listener.getLogger().println("Fetching pipeline from " + request.getUrl());
+        UsernamePasswordCredentials credentials = request.lookupCredentials();
+        if (credentials != null) {
+            CredentialsProvider.track(build, credentials);
         }
 
-        AtomicReference<String> scriptReference = new AtomicReference<>(null);
+        String script;
+        String bundle = null;
+        long start = System.nanoTime();
 
         boolean shouldCache = true;
         if (cachingConfiguration == null) {
@@ -214,52 +241,85 @@ public class CpsHttpFlowDefinition extends FlowDefinition {
         }
 
         if (shouldCache) {
-            Map<String, CacheEntry> pipelineCache = CacheEntry.cache;
-
-            if (pipelineCache.containsKey(expandedScriptUrl)) {
+            ScriptCache pipelineCache = CacheEntry.cache;
+            long cachingSeconds = cachingConfiguration.getCachingSeconds();
+
+            CacheEntry entry = pipelineCache.get(request.getCacheKey());
+            CacheEntry stale = null;
+            if (entry != null && entry.bundle != null && !PipelineBundle.exists(entry.bundle)) {
+                // the script is still there, but not the files it may load, so it cannot be used even if stale
+                listener.getLogger().println("Pipeline bundle is gone from disk. Fetching again");
+                pipelineCache.remove(request.getCacheKey(), entry);
+                entry = null;
+            } else if (entry != null) {
                 listener.getLogger().println("Fetching from cache");
-                if (pipelineCache.get(expandedScriptUrl).expirationDate.isBefore(Instant.now())) {
-                    listener.getLogger().println("Cache is expired. Clearing");
-                    pipelineCache.remove(expandedScriptUrl);
+                if (entry.isExpired()) {
+                    FetchMetrics.cacheExpired.increment();
+                    if (cachingConfiguration.isStaleWhileRevalidate()) {
+                        listener.getLogger().println("Cache is expired. Using it while refreshing in the background");
+                        FetchMetrics.staleServed.increment();
+                        pipelineCache.refreshInBackground(request, cachingSeconds);
+                    } else {
+                        if (entry.hasValidators()) {
+                            listener.getLogger().println("Cache is expired. Revalidating");
+                        } else if (cachingConfiguration.isStaleIfError()) {
+                            listener.getLogger().println("Cache is expired. Refreshing");
+                        } else {
+                            listener.getLogger().println("Cache is expired. Clearing");
+                            pipelineCache.remove(request.getCacheKey(), entry);
+                        }
+                        stale = entry;
+                        entry = null;
+                    }
+                } else {
+                    FetchMetrics.cacheHits.increment();
                 }
             } else {
                 listener.getLogger().println("Cache miss. Actually fetching from HTTP");
+                FetchMetrics.cacheMisses.increment();
             }
 
-            if (!pipelineCache.containsKey(expandedScriptUrl)) {
-                client.connect(
-                        "get pipeline",
-                        "get pipeline from " + expandedScriptUrl,
-                        c -> c.execute(httpGet),
-                        response -> {
-                            try (InputStream is = response.getEntity().getContent()) {
-                                String script = IOUtils.toString(is, StandardCharsets.UTF_8);
-                                pipelineCache.put(expandedScriptUrl, new CacheEntry(getExpirationDate(), script));
-                            }
-                        },
-                        listener);
+            if (entry == null) {
+                try {
+                    entry = pipelineCache.refresh(request, cachingSeconds, listener);
+                } catch (IOException x) {
+                    if (stale == null
+                            || !cachingConfiguration.isStaleIfError()
+                            || (stale.bundle != null && !PipelineBundle.exists(stale.bundle))) {
+                        throw x;
+                    }
+                    listener.getLogger().println("Failed to refresh pipeline, using expired copy from cache: " + x);
+                    FetchMetrics.staleServed.increment();
+                    entry = stale;
+                }
             }
 
-            scriptReference.set(pipelineCache.get(expandedScriptUrl).script);
+            pipelineCache.recordHit(request.getCacheKey());
+            if (cachingConfiguration.isRefreshAhead()) {
+                RefreshAhead.recordHit(request, cachingSeconds, entry);
+            }
+            script = entry.getScript();
+            bundle = entry.bundle;
+        } else if (request.getBundleEntry() != null) {
+            FetchMetrics.uncached.increment();
+            CacheEntry fetched = RobustHTTPClient.await(request.fetchAsync(null, 0, listener));
+            script = fetched.getScript();
+            bundle = fetched.bundle;
         } else {
-            client.connect(
-                    "get pipeline",
-                    "get pipeline from " + expandedScriptUrl,
-                    c -> c.execute(httpGet),
-                    response -> {
-                        try (InputStream is = response.getEntity().getContent()) {
-                            String script = IOUtils.toString(is, StandardCharsets.UTF_8);
-                            scriptReference.set(script);
-                        }
-                    },
-                    listener);
+            FetchMetrics.uncached.increment();
+            script = RobustHTTPClient.await(request.fetchAsync(listener));
+        }
+        FetchMetrics.scriptLoad.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (bundle != null) {
+            PipelineBundle.touch(bundle);
+            build.addAction(new PipelineBundleAction(bundle));
         }
 
         Queue.Executable queueExec = owner.getExecutable();
         FlowDurabilityHint hint = (queueExec instanceof Run)
                 ? DurabilityHintProvider.suggestedFor(((Run) queueExec).getParent())
                 : GlobalDefaultFlowDurabilityLevel.getDefaultDurabilityHint();
-        return new CpsFlowExecution(scriptReference.get(), true, owner, hint);
+        return new CpsFlowExecution(script, true, owner, hint);
     }
 
     @Extension
@@ -283,8 +343,9 @@ public class CpsHttpFlowDefinition extends FlowDefinition {
                 if (splitValue.isEmpty()) {
                     continue;
                 }
-                if (splitValue.split("=").length != 2) {
-                    return FormValidation.error("Each entry must contain one equal sign");
+                if (CachingConfiguration.parseRule(splitValue) == null) {
+                    return FormValidation.error(
+                            "Each entry must be conditions like KEY=glob, KEY=glob1,glob2 or KEY!=glob, joined by &");
                 }
             }
 
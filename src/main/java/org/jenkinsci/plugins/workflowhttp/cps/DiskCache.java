@@ -0,0 +1,218 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.util.XStream2;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Copy of the pipeline cache on disk, so that it survives restarts. Each entry is stored in its own
+ * file, named after a hash of its cache key, and is only read when the key is missing from memory.
+ * The key and expiration date of every file are indexed in memory, read from disk once, so that
+ * sweeping or invalidating entries does not parse every file each time.
+ */
+public final class DiskCache {
+
+    private static final Logger LOGGER = Logger.getLogger(DiskCache.class.getName());
+
+    static final boolean ENABLED = Boolean.getBoolean(DiskCache.class.getName() + ".ENABLED");
+    static final long RETENTION = Long.getLong(DiskCache.class.getName() + ".RETENTION", TimeUnit.DAYS.toMillis(7));
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    static {
+        XSTREAM.alias("pipeline-cache-entry", Record.class);
+    }
+
+    private final File dir;
+    /** Key and expiration date of each file, by file name; complete once {@link #indexed}. */
+    private final Map<String, Indexed> index = new ConcurrentHashMap<>();
+
+    private volatile boolean indexed;
+
+    public DiskCache(File dir) {
+        this.dir = dir;
+    }
+
+    /** The cache in {@code $JENKINS_HOME/pipeline-cps-http-cache}. */
+    static DiskCache inJenkinsHome() {
+        return new DiskCache(new File(Jenkins.get().getRootDir(), "pipeline-cps-http-cache"));
+    }
+
+    @CheckForNull
+    public CacheEntry load(String key) {
+        XmlFile file = file(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            Record record = (Record) file.read();
+            if (!key.equals(record.key)) {
+                return null;
+            }
+            index.put(file.getFile().getName(), new Indexed(record.key, record.expirationDate));
+            CacheEntry entry = new CacheEntry(
+                            Instant.ofEpochMilli(record.expirationDate),
+                            record.script,
+                            record.etag,
+                            record.lastModified)
+                    .withBundle(record.bundle);
+            // not recorded by older versions
+            return record.fetched != 0 ? entry.withFetched(Instant.ofEpochMilli(record.fetched)) : entry;
+        } catch (IOException | RuntimeException x) {
+            LOGGER.log(Level.WARNING, "Failed to read cached pipeline from " + file, x);
+            return null;
+        }
+    }
+
+    public void save(String key, CacheEntry entry) {
+        XmlFile file = file(key);
+        try {
+            file.write(new Record(key, entry));
+            index.put(file.getFile().getName(), new Indexed(key, entry.expirationDate.toEpochMilli()));
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Failed to write cached pipeline to " + file, x);
+        }
+    }
+
+    public void delete(String key) {
+        delete(file(key).getFile());
+    }
+
+    /** Deletes every entry whose key matches, returning their keys. */
+    public List<String> deleteMatching(Predicate<String> keys) {
+        List<String> deleted = new ArrayList<>();
+        for (Map.Entry<String, Indexed> entry : index().entrySet()) {
+            String key = entry.getValue().key;
+            if (key != null && keys.test(key) && delete(new File(dir, entry.getKey()))) {
+                deleted.add(key);
+            }
+        }
+        return deleted;
+    }
+
+    /** Deletes every entry which expired before {@code cutoff}, and any unreadable one. */
+    public void deleteExpired(Instant cutoff) {
+        for (Map.Entry<String, Indexed> entry : index().entrySet()) {
+            if (entry.getValue().expirationDate < cutoff.toEpochMilli()) {
+                delete(new File(dir, entry.getKey()));
+            }
+        }
+    }
+
+    public void clear() {
+        for (File f : files()) {
+            delete(f);
+        }
+    }
+
+    /** The index, read from the files on first use. */
+    private Map<String, Indexed> index() {
+        if (!indexed) {
+            synchronized (index) {
+                if (!indexed) {
+                    for (File f : files()) {
+                        if (!index.containsKey(f.getName())) {
+                            index.putIfAbsent(f.getName(), read(f));
+                        }
+                    }
+                    indexed = true;
+                }
+            }
+        }
+        return index;
+    }
+
+    private static Indexed read(File f) {
+        try {
+            Record record = (Record) new XmlFile(XSTREAM, f).read();
+            return new Indexed(record.key, record.expirationDate);
+        } catch (IOException | RuntimeException x) {
+            LOGGER.log(Level.WARNING, "Unreadable cached pipeline " + f + " will be deleted", x);
+            return new Indexed(null, Long.MIN_VALUE);
+        }
+    }
+
+    private File[] files() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".xml"));
+        return files != null ? files : new File[0];
+    }
+
+    private XmlFile file(String key) {
+        return new XmlFile(XSTREAM, new File(dir, hash(key) + ".xml"));
+    }
+
+    /** Deletes a file, returning whether it was there. */
+    private boolean delete(File f) {
+        try {
+            boolean deleted = Files.deleteIfExists(f.toPath());
+            index.remove(f.getName());
+            return deleted;
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Failed to delete cached pipeline " + f, x);
+            return false;
+        }
+    }
+
+    static String hash(String key) {
+        return hash(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String hash(byte[] bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Util.toHexString(digest.digest(bytes));
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    private static final class Indexed {
+        /** Null if the file could not be read. */
+        @CheckForNull
+        final String key;
+
+        final long expirationDate;
+
+        Indexed(@CheckForNull String key, long expirationDate) {
+            this.key = key;
+            this.expirationDate = expirationDate;
+        }
+    }
+
+    private static final class Record {
+        private final String key;
+        private final long expirationDate;
+        private final long fetched;
+        private final String etag;
+        private final String lastModified;
+        private final String script;
+        private final String bundle;
+
+        Record(String key, CacheEntry entry) {
+            this.key = key;
+            this.expirationDate = entry.expirationDate.toEpochMilli();
+            this.fetched = entry.fetched.toEpochMilli();
+            this.etag = entry.etag;
+            this.lastModified = entry.lastModified;
+            this.script = entry.getScript();
+            this.bundle = entry.bundle;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.metrics.api.MetricProvider;
+import jenkins.metrics.api.Metrics;
+
+/**
+ * Publishes {@link FetchMetrics} through the Metrics plugin, when installed, under {@code
+ * pipeline-cps-http}. Hosts are added as they are first requested.
+ */
+@Extension(optional = true)
+public final class FetchMetricProvider extends MetricProvider {
+
+    private static final Logger LOGGER = Logger.getLogger(FetchMetricProvider.class.getName());
+
+    static final String PREFIX = "pipeline-cps-http";
+
+    @NonNull
+    @Override
+    public MetricSet getMetricSet() {
+        Map<String, Metric> metrics = new HashMap<>();
+        gauge(metrics, "cache.hits", FetchMetrics.cacheHits::sum);
+        gauge(metrics, "cache.misses", FetchMetrics.cacheMisses::sum);
+        gauge(metrics, "cache.expired", FetchMetrics.cacheExpired::sum);
+        gauge(metrics, "cache.stale-served", FetchMetrics.staleServed::sum);
+        gauge(metrics, "cache.evictions", FetchMetrics.cacheEvictions::sum);
+        gauge(metrics, "cache.uncached", FetchMetrics.uncached::sum);
+        gauge(metrics, "cache.hit-ratio", FetchMetrics::getHitRatio);
+        gauge(metrics, "cache.entries", CacheEntry.cache::size);
+        gauge(metrics, "cache.scripts", CacheEntry.cache::getScriptCount);
+        gauge(metrics, "cache.bytes", CacheEntry.cache::getBytes);
+        histogram(metrics, "load", () -> FetchMetrics.scriptLoad);
+        host(metrics, "fetch", FetchMetrics::getTotal);
+        return () -> metrics;
+    }
+
+    private static void host(Map<String, Metric> metrics, String name, Supplier<FetchMetrics.HostMetrics> host) {
+        gauge(metrics, name + ".attempts", () -> host.get().getAttempts());
+        gauge(metrics, name + ".failures", () -> host.get().getFailures());
+        gauge(metrics, name + ".retries", () -> host.get().getRetries());
+        gauge(metrics, name + ".not-modified", () -> host.get().getNotModified());
+        gauge(metrics, name + ".bytes-received", () -> host.get().getBytesReceived());
+        histogram(metrics, name + ".latency", () -> host.get().getLatency());
+    }
+
+    private static void histogram(
+            Map<String, Metric> metrics, String name, Supplier<FetchMetrics.Histogram> histogram) {
+        gauge(metrics, name + ".count", () -> histogram.get().getCount());
+        gauge(metrics, name + ".mean", () -> histogram.get().getMean());
+        gauge(metrics, name + ".p50", () -> histogram.get().getPercentile(0.5));
+        gauge(metrics, name + ".p95", () -> histogram.get().getPercentile(0.95));
+        gauge(metrics, name + ".p99", () -> histogram.get().getPercentile(0.99));
+    }
+
+    private static <T> void gauge(Map<String, Metric> metrics, String name, Gauge<T> gauge) {
+        metrics.put(MetricRegistry.name(PREFIX, name), gauge);
+    }
+
+    /** Registers the metrics of hosts requested since the last run. */
+    @Extension(optional = true)
+    public static final class HostRegistration extends PeriodicWork {
+        private final Set<String> registered = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
+
+        @Override
+        protected void doRun() {
+            for (Map.Entry<String, FetchMetrics.HostMetrics> host : FetchMetrics.getHosts().entrySet()) {
+                if (!registered.add(host.getKey())) {
+                    continue;
+                }
+                Map<String, Metric> metrics = new HashMap<>();
+                FetchMetrics.HostMetrics hostMetrics = host.getValue();
+                host(metrics, "host." + host.getKey().replaceAll("[^A-Za-z0-9-]+", "_"), () -> hostMetrics);
+                try {
+                    Metrics.metricRegistry().registerAll(() -> metrics);
+                } catch (IllegalArgumentException x) {
+                    LOGGER.log(Level.FINE, "Metrics of " + host.getKey() + " clash with another host", x);
+                }
+            }
+        }
+    }
+}
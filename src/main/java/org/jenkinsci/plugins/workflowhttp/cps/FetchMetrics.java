@@ -0,0 +1,194 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latencies of pipeline fetches and of the cache, since startup, in aggregate and by
+ * host. Shown on {@link PipelineCacheManagementLink} and, when the Metrics plugin is installed,
+ * published through {@link FetchMetricProvider}.
+ */
+public final class FetchMetrics {
+
+    /** Builds whose pipeline was found fresh in the cache. */
+    public static final LongAdder cacheHits = new LongAdder();
+    /** Builds whose pipeline was not in the cache. */
+    public static final LongAdder cacheMisses = new LongAdder();
+    /** Builds whose pipeline was in the cache, but expired. */
+    public static final LongAdder cacheExpired = new LongAdder();
+    /** Builds started with an expired pipeline, while refreshing it or because refreshing it failed. */
+    public static final LongAdder staleServed = new LongAdder();
+    /** Cached pipelines dropped to make room for others. */
+    public static final LongAdder cacheEvictions = new LongAdder();
+    /** Builds for which caching was off or excluded. */
+    public static final LongAdder uncached = new LongAdder();
+    /** Time taken to get the pipeline of a build, from the cache or not. */
+    public static final Histogram scriptLoad = new Histogram();
+
+    private static final Map<String, HostMetrics> hosts = new ConcurrentHashMap<>();
+
+    private FetchMetrics() {}
+
+    /** Metrics of requests to a host, such as {@code https://example.com}. */
+    public static HostMetrics host(String host) {
+        return hosts.computeIfAbsent(host, h -> new HostMetrics());
+    }
+
+    /** Metrics of every host requested so far, by host. */
+    public static Map<String, HostMetrics> getHosts() {
+        return Collections.unmodifiableMap(new TreeMap<>(hosts));
+    }
+
+    /** Metrics of all hosts together. */
+    public static HostMetrics getTotal() {
+        HostMetrics total = new HostMetrics();
+        for (HostMetrics host : hosts.values()) {
+            total.add(host);
+        }
+        return total;
+    }
+
+    public static double getHitRatio() {
+        long hits = cacheHits.sum();
+        long lookups = hits + cacheMisses.sum() + cacheExpired.sum();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /** Weight of the latest attempt in the moving averages of {@link HostMetrics}. */
+    static final double EWMA_ALPHA =
+            SystemProperty.getDouble(FetchMetrics.class.getName() + ".EWMA_ALPHA", 0.3, Double.MIN_VALUE, 1);
+
+    /** Requests to a single host. Each attempt counts, retries included. */
+    public static final class HostMetrics {
+        public final LongAdder attempts = new LongAdder();
+        public final LongAdder failures = new LongAdder();
+        public final LongAdder retries = new LongAdder();
+        public final LongAdder notModified = new LongAdder();
+        public final LongAdder bytesReceived = new LongAdder();
+        public final Histogram latency = new Histogram();
+        /** Exponentially weighted moving averages of recent attempts, favoring the latest ones. */
+        private double latencyEwma = -1;
+
+        private double errorEwma;
+
+        /** Counts an attempt taking {@code millis}, in the moving averages as well as the totals. */
+        void record(long millis, boolean failed) {
+            attempts.increment();
+            latency.record(millis);
+            if (failed) {
+                failures.increment();
+            }
+            synchronized (this) {
+                latencyEwma = latencyEwma < 0 ? millis : EWMA_ALPHA * millis + (1 - EWMA_ALPHA) * latencyEwma;
+                errorEwma = EWMA_ALPHA * (failed ? 1 : 0) + (1 - EWMA_ALPHA) * errorEwma;
+            }
+        }
+
+        /** Moving average of the latency of attempts, in milliseconds, or -1 before the first. */
+        public synchronized double getLatencyEwma() {
+            return latencyEwma;
+        }
+
+        /** Moving average of the share of attempts which failed, from 0 to 1. */
+        public synchronized double getErrorEwma() {
+            return errorEwma;
+        }
+
+        void add(HostMetrics other) {
+            attempts.add(other.attempts.sum());
+            failures.add(other.failures.sum());
+            retries.add(other.retries.sum());
+            notModified.add(other.notModified.sum());
+            bytesReceived.add(other.bytesReceived.sum());
+            latency.add(other.latency);
+        }
+
+        public long getAttempts() {
+            return attempts.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        public long getNotModified() {
+            return notModified.sum();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        public Histogram getLatency() {
+            return latency;
+        }
+    }
+
+    /**
+     * Distribution of durations in milliseconds, in fixed buckets, so that recording is cheap and
+     * percentiles are approximate: each is reported as the upper bound of its bucket.
+     */
+    public static final class Histogram {
+        static final long[] BOUNDS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+        private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long millis) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+            sum.add(millis);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.addAndGet(i, other.counts.get(i));
+            }
+            sum.add(other.sum.sum());
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) sum.sum() / count;
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the upper bound of the bucket holding that quantile, or -1 if beyond the last bound
+         */
+        public long getPercentile(double quantile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return BOUNDS[i];
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import java.util.List;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+
+/** Removes cached pipelines by URL. */
+@Extension
+public final class InvalidatePipelineCacheCommand extends CLICommand {
+
+    @Argument(
+            metaVar = "URL",
+            usage = "URLs of the pipelines to invalidate, where * stands for any text and ? for any character",
+            required = true)
+    public List<String> patterns;
+
+    @Override
+    public String getShortDescription() {
+        return "Removes cached pipelines, so that the next builds fetch them again.";
+    }
+
+    @Override
+    protected int run() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        int removed = 0;
+        for (String pattern : patterns) {
+            removed += CacheEntry.cache.invalidate(ScriptCache.keysMatching(pattern)).size();
+        }
+        stdout.println("Invalidated " + removed + " cached pipelines");
+        return 0;
+    }
+}
@@ -0,0 +1,31 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import jenkins.model.Jenkins;
+
+/** Lists the pipelines cached in memory, one per line. */
+@Extension
+public final class ListPipelineCacheCommand extends CLICommand {
+
+    @Override
+    public String getShortDescription() {
+        return "Lists cached pipelines: URL, id, size in bytes, age, builds which used it, and whether expired.";
+    }
+
+    @Override
+    protected int run() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        for (ScriptCache.Info entry : CacheEntry.cache.list()) {
+            stdout.printf(
+                    "%s\t%s\t%d\t%s\t%d\t%s%n",
+                    entry.getUrl(),
+                    entry.getId(),
+                    entry.getSize(),
+                    entry.getAge(),
+                    entry.getHits(),
+                    entry.isExpired() ? "expired" : "fresh");
+        }
+        return 0;
+    }
+}
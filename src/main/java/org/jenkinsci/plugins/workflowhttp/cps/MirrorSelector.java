@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders the mirrors of a pipeline from the most to the least promising, from the moving averages of
+ * the latency and errors of recent requests to each host (see {@link FetchMetrics.HostMetrics}).
+ * Hosts not requested yet come first, so that each gets measured; hosts whose circuit breaker is
+ * open or which mostly fail come last.
+ */
+final class MirrorSelector {
+
+    /** Share of recent attempts failing above which a host is only tried after the others. */
+    static final double MAX_ERROR_RATE =
+            SystemProperty.getDouble(MirrorSelector.class.getName() + ".MAX_ERROR_RATE", 0.5, 0, 1);
+    /** Percentile of the latency of a host after which a hedged request is sent to the next mirror. */
+    static final double HEDGE_PERCENTILE =
+            SystemProperty.getDouble(MirrorSelector.class.getName() + ".HEDGE_PERCENTILE", 0.95, 0, 1);
+    /** Requests to a host needed before its latency percentile is trusted for hedging. */
+    static final int HEDGE_MIN_SAMPLES = Integer.getInteger(MirrorSelector.class.getName() + ".HEDGE_MIN_SAMPLES", 20);
+    /** Delay before a hedged request while the latency of a host is not known well enough, in milliseconds. */
+    static final long HEDGE_DEFAULT_DELAY = Long.getLong(MirrorSelector.class.getName() + ".HEDGE_DEFAULT_DELAY", 1000);
+
+    private MirrorSelector() {}
+
+    static List<String> order(List<String> urls) {
+        List<String> ordered = new ArrayList<>(urls);
+        if (ordered.size() > 1) {
+            ordered.sort(Comparator.comparing((String url) -> isUnhealthy(hostOf(url)))
+                    .thenComparingDouble(url -> score(hostOf(url))));
+        }
+        return ordered;
+    }
+
+    /** How long to wait for a response from {@code url} before also asking the next mirror. */
+    static long hedgeDelay(String url) {
+        String host = hostOf(url);
+        if (host == null) {
+            return HEDGE_DEFAULT_DELAY;
+        }
+        FetchMetrics.Histogram latency = FetchMetrics.host(host).getLatency();
+        if (latency.getCount() < HEDGE_MIN_SAMPLES) {
+            return HEDGE_DEFAULT_DELAY;
+        }
+        long percentile = latency.getPercentile(HEDGE_PERCENTILE);
+        long[] bounds = FetchMetrics.Histogram.BOUNDS;
+        return percentile == -1 ? bounds[bounds.length - 1] : percentile;
+    }
+
+    private static boolean isUnhealthy(@CheckForNull String host) {
+        if (host == null) {
+            return false;
+        }
+        CircuitBreaker breaker = CircuitBreaker.forHost(host);
+        return (breaker != null && breaker.getState() == CircuitBreaker.State.OPEN)
+                || FetchMetrics.host(host).getErrorEwma() > MAX_ERROR_RATE;
+    }
+
+    /** Expected time to get a response, penalizing hosts by how often they fail. */
+    private static double score(@CheckForNull String host) {
+        if (host == null) {
+            return 0;
+        }
+        FetchMetrics.HostMetrics metrics = FetchMetrics.host(host);
+        double latency = metrics.getLatencyEwma();
+        return latency < 0 ? 0 : latency / Math.max(1 - metrics.getErrorEwma(), 0.01);
+    }
+
+    @CheckForNull
+    private static String hostOf(String url) {
+        try {
+            return RobustHTTPClient.hostOf(new URL(url));
+        } catch (MalformedURLException x) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.PeriodicWork;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import jenkins.model.Jenkins;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+
+/**
+ * Pipelines fetched as a zip or tar archive, extracted once into {@code
+ * $JENKINS_HOME/pipeline-cps-http-bundles/<hash>}, where {@code hash} is the SHA-256 of the archive.
+ * Builds run one script of the bundle, and get the others into their workspace with {@link
+ * UnpackPipelineBundleStep}. Bundles unused for {@code RETENTION} are deleted.
+ */
+public final class PipelineBundle {
+
+    private static final Logger LOGGER = Logger.getLogger(PipelineBundle.class.getName());
+
+    /** Largest total size of the files of a bundle, in bytes, so that an archive cannot fill up the disk. */
+    static final long MAX_EXTRACTED_SIZE =
+            Long.getLong(PipelineBundle.class.getName() + ".MAX_EXTRACTED_SIZE", 100L * 1024 * 1024);
+
+    static final long RETENTION =
+            Long.getLong(PipelineBundle.class.getName() + ".RETENTION", TimeUnit.DAYS.toMillis(7));
+
+    private PipelineBundle() {}
+
+    static Path root() {
+        return Jenkins.get().getRootDir().toPath().resolve("pipeline-cps-http-bundles");
+    }
+
+    static Path directory(String hash) {
+        return root().resolve(hash);
+    }
+
+    static boolean exists(String hash) {
+        return Files.isDirectory(directory(hash));
+    }
+
+    /**
+     * Extracts a bundle, unless an identical one already was.
+     *
+     * @return the hash of the bundle
+     */
+    static String extract(byte[] bundle) throws IOException {
+        String hash = DiskCache.hash(bundle);
+        Path dir = directory(hash);
+        if (Files.isDirectory(dir)) {
+            touch(hash);
+            return hash;
+        }
+        Files.createDirectories(root());
+        Path tmp = Files.createTempDirectory(root(), hash + ".tmp");
+        try {
+            unpack(bundle, tmp);
+            try {
+                Files.move(tmp, dir, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException x) {
+                if (!Files.isDirectory(dir)) {
+                    throw x;
+                } // else extracted concurrently
+            }
+        } finally {
+            if (Files.exists(tmp)) {
+                Util.deleteRecursive(tmp.toFile());
+            }
+        }
+        return hash;
+    }
+
+    /** Reads the script at {@code path} in a bundle. */
+    static String read(String hash, String path) throws IOException {
+        Path dir = directory(hash);
+        Path file = dir.resolve(path).normalize();
+        if (!file.startsWith(dir) || !Files.isRegularFile(file)) {
+            throw new AbortException("Pipeline bundle has no file " + path);
+        }
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    /** Marks a bundle as used, so that it is kept for another {@code RETENTION}. */
+    static void touch(String hash) {
+        try {
+            Files.setLastModifiedTime(directory(hash), FileTime.from(Instant.now()));
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "Failed to mark pipeline bundle " + hash + " as used", x);
+        }
+    }
+
+    /** Extracts the regular files of a zip, tar or gzipped tar archive into {@code dir}. */
+    static void unpack(byte[] bundle, Path dir) throws IOException {
+        try (ArchiveInputStream archive = open(bundle)) {
+            long size = 0;
+            ArchiveEntry entry;
+            while ((entry = archive.getNextEntry()) != null) {
+                if (entry.isDirectory() || !isRegularFile(entry)) {
+                    continue;
+                }
+                Path target = dir.resolve(entry.getName()).normalize();
+                if (!target.startsWith(dir) || target.equals(dir)) {
+                    throw new AbortException("Pipeline bundle entry " + entry.getName() + " is outside of the bundle");
+                }
+                Files.createDirectories(target.getParent());
+                try (OutputStream out = Files.newOutputStream(target)) {
+                    size += copy(archive, out, MAX_EXTRACTED_SIZE - size);
+                }
+            }
+        }
+    }
+
+    private static ArchiveInputStream open(byte[] bundle) throws IOException {
+        InputStream in = new ByteArrayInputStream(bundle);
+        if (bundle.length >= 2 && (bundle[0] & 0xff) == 0x1f && (bundle[1] & 0xff) == 0x8b) {
+            return new TarArchiveInputStream(new GZIPInputStream(in));
+        }
+        if (bundle.length >= 4 && bundle[0] == 'P' && bundle[1] == 'K' && bundle[2] == 3 && bundle[3] == 4) {
+            return new ZipArchiveInputStream(in);
+        }
+        if (TarArchiveInputStream.matches(bundle, bundle.length)) {
+            return new TarArchiveInputStream(in);
+        }
+        throw new AbortException("Pipeline bundle is not a zip, tar or tar.gz archive");
+    }
+
+    private static boolean isRegularFile(ArchiveEntry entry) {
+        if (entry instanceof TarArchiveEntry) {
+            return ((TarArchiveEntry) entry).isFile();
+        }
+        return !(entry instanceof ZipArchiveEntry && ((ZipArchiveEntry) entry).isUnixSymlink());
+    }
+
+    private static long copy(InputStream in, OutputStream out, long limit) throws IOException {
+        byte[] buffer = new byte[8192];
+        long copied = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            copied += n;
+            if (copied > limit) {
+                throw new AbortException("Pipeline bundle larger than " + MAX_EXTRACTED_SIZE + " bytes once extracted");
+            }
+            out.write(buffer, 0, n);
+        }
+        return copied;
+    }
+
+    /** Deletes bundles unused for {@code RETENTION}. */
+    @Extension
+    public static final class Cleaner extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.HOURS.toMillis(1);
+        }
+
+        @Override
+        protected void doRun() throws IOException {
+            File[] bundles = root().toFile().listFiles(File::isDirectory);
+            if (bundles == null) {
+                return;
+            }
+            long cutoff = System.currentTimeMillis() - RETENTION;
+            for (File bundle : bundles) {
+                if (bundle.lastModified() < cutoff) {
+                    LOGGER.log(Level.FINE, "Deleting unused pipeline bundle {0}", bundle.getName());
+                    Util.deleteRecursive(bundle);
+                }
+            }
+        }
+    }
+}
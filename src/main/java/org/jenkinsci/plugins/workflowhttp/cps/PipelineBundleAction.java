@@ -0,0 +1,17 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import hudson.model.InvisibleAction;
+
+/** Records which {@link PipelineBundle} the pipeline of a build was read from. */
+public final class PipelineBundleAction extends InvisibleAction {
+
+    private final String hash;
+
+    public PipelineBundleAction(String hash) {
+        this.hash = hash;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+}
@@ -0,0 +1,177 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Api;
+import hudson.model.ManagementLink;
+import hudson.util.LogTaskListener;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Page under <em>Manage Jenkins</em> showing how pipeline fetches and the pipeline cache perform,
+ * and letting administrators invalidate and warm the cache. Also available as {@code api/json}.
+ */
+@Extension
+@ExportedBean
+public final class PipelineCacheManagementLink extends ManagementLink {
+
+    private static final Logger LOGGER = Logger.getLogger(PipelineCacheManagementLink.class.getName());
+
+    /** How long warmed pipelines are cached for when not specified, in minutes. */
+    static final int DEFAULT_WARM_MINUTES = 60;
+
+    @Override
+    public String getIconFileName() {
+        return "symbol-analytics";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Pipeline HTTP Cache";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Cache hit rates and fetch latencies of pipelines loaded over HTTP. Invalidate and warm the cache.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "pipeline-cps-http";
+    }
+
+    @NonNull
+    @Override
+    public Category getCategory() {
+        return Category.STATUS;
+    }
+
+    public Api getApi() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        return new Api(this);
+    }
+
+    public ScriptCache getCache() {
+        return CacheEntry.cache;
+    }
+
+    @Exported
+    public List<ScriptCache.Info> getEntries() {
+        return CacheEntry.cache.list();
+    }
+
+    @Exported
+    public long getCacheHits() {
+        return FetchMetrics.cacheHits.sum();
+    }
+
+    @Exported
+    public long getCacheMisses() {
+        return FetchMetrics.cacheMisses.sum();
+    }
+
+    @Exported
+    public long getCacheExpired() {
+        return FetchMetrics.cacheExpired.sum();
+    }
+
+    @Exported
+    public long getStaleServed() {
+        return FetchMetrics.staleServed.sum();
+    }
+
+    @Exported
+    public long getCacheEvictions() {
+        return FetchMetrics.cacheEvictions.sum();
+    }
+
+    @Exported
+    public long getUncached() {
+        return FetchMetrics.uncached.sum();
+    }
+
+    public String getHitRatio() {
+        return String.format("%.1f%%", 100 * FetchMetrics.getHitRatio());
+    }
+
+    public FetchMetrics.Histogram getScriptLoad() {
+        return FetchMetrics.scriptLoad;
+    }
+
+    public Map<String, FetchMetrics.HostMetrics> getHosts() {
+        return FetchMetrics.getHosts();
+    }
+
+    public FetchMetrics.HostMetrics getTotal() {
+        return FetchMetrics.getTotal();
+    }
+
+    /** A percentile of {@code histogram} for display, in milliseconds. */
+    public String percentile(FetchMetrics.Histogram histogram, double quantile) {
+        long value = histogram.getPercentile(quantile);
+        long[] bounds = FetchMetrics.Histogram.BOUNDS;
+        return value == -1 ? "> " + bounds[bounds.length - 1] : "≤ " + value;
+    }
+
+    public String mean(FetchMetrics.Histogram histogram) {
+        return String.format("%.0f", histogram.getMean());
+    }
+
+    /**
+     * Removes cached pipelines, either the one whose key has the {@link ScriptCache.Info#getId id}
+     * {@code id} or all those whose URL matches the glob {@code pattern}.
+     */
+    @POST
+    public HttpResponse doInvalidate(@QueryParameter String id, @QueryParameter String pattern) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        Predicate<String> keys;
+        if (Util.fixEmpty(id) != null) {
+            keys = key -> ScriptCache.idOf(key).equals(id);
+        } else if (Util.fixEmptyAndTrim(pattern) != null) {
+            keys = ScriptCache.keysMatching(pattern.trim());
+        } else {
+            return HttpResponses.error(400, "Specify the id or the pattern of the pipelines to invalidate");
+        }
+        int removed = CacheEntry.cache.invalidate(keys).size();
+        LOGGER.log(Level.INFO, "Invalidated {0} cached pipelines matching {1}", new Object[] {
+            removed, Util.fixEmpty(id) != null ? id : pattern
+        });
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Fetches pipelines into the cache in the background, from whitespace-separated {@code urls}, as
+     * the jobs fetching them do: see {@link PipelinePrefetcher#requestsFor}.
+     */
+    @POST
+    public HttpResponse doWarm(@QueryParameter String urls, @QueryParameter int minutes) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        if (Util.fixEmptyAndTrim(urls) == null) {
+            return HttpResponses.error(400, "Specify the URLs of the pipelines to warm");
+        }
+        List<ScriptRequest> list = PipelinePrefetcher.requestsFor(Arrays.asList(urls.trim().split("\\s+")));
+        long cachingSeconds = TimeUnit.MINUTES.toSeconds(minutes > 0 ? minutes : DEFAULT_WARM_MINUTES);
+        CacheEntry.cache
+                .warm(list, cachingSeconds, new LogTaskListener(LOGGER, Level.FINE))
+                .forEach((request, fetch) -> fetch.whenComplete((entry, x) -> {
+                    if (x != null) {
+                        LOGGER.log(Level.WARNING, "Failed to warm cached pipeline from " + request.getUrl(), x);
+                    }
+                }));
+        return HttpResponses.redirectToDot();
+    }
+}
@@ -0,0 +1,273 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.UnprotectedRootAction;
+import hudson.security.csrf.CrumbExclusion;
+import hudson.util.LogTaskListener;
+import hudson.util.Secret;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.GlobalConfigurationCategory;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.verb.POST;
+
+/**
+ * Lets the server hosting pipelines tell Jenkins that some changed, so that they are fetched again
+ * without waiting for their cached copy to expire. Expects a {@code POST} to {@code
+ * /pipeline-cps-http-webhook/} of a JSON object like
+ *
+ * <pre>{@code
+ * {"urls": ["https://example.com/a/Jenkinsfile"], "prefixes": ["https://example.com/b/"],
+ *  "patterns": ["https://example.com/*.groovy"], "refetch": true, "minutes": 60}
+ * }</pre>
+ *
+ * <p>authenticated either by the HMAC-SHA256 of the body keyed by the shared secret, in an {@code
+ * X-Hub-Signature-256: sha256=<hex>} header, or by the secret itself in an {@code Authorization:
+ * Bearer} header. Disabled until a secret is configured.
+ *
+ * <p>Matching pipelines are removed from the cache, whatever the headers and credentials they were
+ * fetched with, and, if {@code refetch} is set, fetched again in the background with the same headers
+ * and credentials, and cached for {@code minutes}. Those are the ones of the last fetch, or, when
+ * Jenkins restarted since, of the jobs using the pipeline: pipelines fetched with headers or
+ * credentials no job uses anymore are only removed, not fetched without them.
+ */
+@Extension
+public final class PipelineCacheWebhook implements UnprotectedRootAction {
+
+    private static final Logger LOGGER = Logger.getLogger(PipelineCacheWebhook.class.getName());
+
+    static final String URL_NAME = "pipeline-cps-http-webhook";
+
+    static final String SIGNATURE_HEADER = "X-Hub-Signature-256";
+
+    /** Largest notification accepted, in bytes. */
+    static final int MAX_BODY_SIZE =
+            Integer.getInteger(PipelineCacheWebhook.class.getName() + ".MAX_BODY_SIZE", 64 * 1024);
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return URL_NAME;
+    }
+
+    @POST
+    public HttpResponse doIndex(StaplerRequest2 req) throws IOException {
+        Secret secret = Configuration.get().getSecret();
+        if (secret == null) {
+            return HttpResponses.notFound();
+        }
+        byte[] body;
+        try (InputStream in = req.getInputStream()) {
+            body = in.readNBytes(MAX_BODY_SIZE + 1);
+        }
+        if (body.length > MAX_BODY_SIZE) {
+            return HttpResponses.error(413, "Notification larger than " + MAX_BODY_SIZE + " bytes");
+        }
+        if (!isAuthentic(secret, body, req.getHeader(SIGNATURE_HEADER), req.getHeader("Authorization"))) {
+            return HttpResponses.forbidden();
+        }
+        JSONObject notification;
+        Predicate<String> keys;
+        try {
+            notification = JSONObject.fromObject(new String(body, StandardCharsets.UTF_8));
+            keys = keysOf(notification);
+        } catch (JSONException x) {
+            return HttpResponses.error(400, "Invalid notification: " + x.getMessage());
+        }
+        if (keys == null) {
+            return HttpResponses.error(400, "Specify the urls, prefixes or patterns of the changed pipelines");
+        }
+        boolean refetch = notification.optBoolean("refetch");
+        Map<String, ScriptRequest> requests = new HashMap<>();
+        if (refetch) {
+            requests.putAll(PipelineCacheWebhook.requestsMatching(keys));
+        }
+        Set<String> invalidated = new TreeSet<>();
+        List<ScriptRequest> refetched = new ArrayList<>();
+        for (String key : CacheEntry.cache.invalidate(keys)) {
+            invalidated.add(ScriptCache.describe(key));
+            ScriptRequest request = requests.get(key);
+            if (request == null && ScriptRequest.urlOf(key).equals(key)) {
+                // fetched without headers or credentials
+                request = new ScriptRequest(key, null, null, null, null, 0);
+            }
+            if (request != null) {
+                refetched.add(request);
+            } else if (refetch) {
+                LOGGER.log(Level.FINE, "Not refetching {0}: no job requests it", ScriptCache.describe(key));
+            }
+        }
+        LOGGER.log(Level.FINE, "Invalidated cached pipelines {0}", invalidated);
+        refetch = refetch && !refetched.isEmpty();
+        if (refetch) {
+            int minutes = notification.optInt("minutes", PipelineCacheManagementLink.DEFAULT_WARM_MINUTES);
+            long cachingSeconds = TimeUnit.MINUTES.toSeconds(
+                    minutes > 0 ? minutes : PipelineCacheManagementLink.DEFAULT_WARM_MINUTES);
+            CacheEntry.cache
+                    .warm(refetched, cachingSeconds, new LogTaskListener(LOGGER, Level.FINE))
+                    .forEach((request, fetch) -> fetch.whenComplete((entry, x) -> {
+                        if (x != null) {
+                            LOGGER.log(Level.WARNING, "Failed to refetch pipeline from " + request.getUrl(), x);
+                        }
+                    }));
+        }
+        JSONObject response = new JSONObject();
+        response.put("invalidated", JSONArray.fromObject(invalidated));
+        response.put("refetching", refetch);
+        return HttpResponses.okJSON(response);
+    }
+
+    /**
+     * The requests to fetch the pipelines whose key matches again with: the ones they were last fetched
+     * with, or, for those not in memory, the ones of the jobs using them.
+     */
+    private static Map<String, ScriptRequest> requestsMatching(Predicate<String> keys) {
+        Map<String, ScriptRequest> requests = new HashMap<>();
+        PipelinePrefetcher.requestsOfJobs().forEach((key, request) -> {
+            if (keys.test(key)) {
+                requests.put(key, request);
+            }
+        });
+        requests.putAll(CacheEntry.cache.requestsMatching(keys));
+        return requests;
+    }
+
+    static boolean isAuthentic(
+            Secret secret, byte[] body, @CheckForNull String signature, @CheckForNull String authorization) {
+        byte[] key = secret.getPlainText().getBytes(StandardCharsets.UTF_8);
+        if (signature != null && signature.startsWith("sha256=")) {
+            byte[] expected = HexFormat.of().formatHex(sign(key, body)).getBytes(StandardCharsets.US_ASCII);
+            byte[] actual = signature.substring("sha256=".length()).getBytes(StandardCharsets.US_ASCII);
+            return MessageDigest.isEqual(expected, actual);
+        }
+        if (authorization != null && authorization.startsWith("Bearer ")) {
+            byte[] actual = authorization.substring("Bearer ".length()).getBytes(StandardCharsets.UTF_8);
+            return MessageDigest.isEqual(key, actual);
+        }
+        return false;
+    }
+
+    static byte[] sign(byte[] key, byte[] body) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(body);
+        } catch (GeneralSecurityException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /** Matches the keys named by a notification, or returns {@code null} if it names none. */
+    @CheckForNull
+    static Predicate<String> keysOf(JSONObject notification) {
+        List<Predicate<String>> keys = new ArrayList<>();
+        for (String url : strings(notification, "urls")) {
+            keys.add(ScriptRequest.keysFor(url));
+        }
+        for (String prefix : strings(notification, "prefixes")) {
+            keys.add(key -> key.startsWith(prefix));
+        }
+        for (String pattern : strings(notification, "patterns")) {
+            keys.add(ScriptCache.keysMatching(pattern));
+        }
+        return keys.stream().reduce(Predicate::or).orElse(null);
+    }
+
+    private static List<String> strings(JSONObject notification, String name) {
+        List<String> strings = new ArrayList<>();
+        JSONArray array = notification.optJSONArray(name);
+        if (array != null) {
+            for (Object value : array) {
+                String string = Util.fixEmptyAndTrim(String.valueOf(value));
+                if (string != null) {
+                    strings.add(string);
+                }
+            }
+        }
+        return strings;
+    }
+
+    /** Lets notifications through without a crumb, as they are authenticated by the shared secret. */
+    @Extension
+    public static final class CrumbExclusionImpl extends CrumbExclusion {
+        @Override
+        public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain)
+                throws IOException, ServletException {
+            String pathInfo = req.getPathInfo();
+            if (pathInfo != null && (pathInfo.equals("/" + URL_NAME) || pathInfo.startsWith("/" + URL_NAME + "/"))) {
+                chain.doFilter(req, resp);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** Secret shared with the servers notifying the webhook. */
+    @Extension
+    public static final class Configuration extends GlobalConfiguration {
+        @CheckForNull
+        private Secret secret;
+
+        public Configuration() {
+            load();
+        }
+
+        public static Configuration get() {
+            return GlobalConfiguration.all().getInstance(Configuration.class);
+        }
+
+        @CheckForNull
+        public Secret getSecret() {
+            return secret;
+        }
+
+        @DataBoundSetter
+        public void setSecret(@CheckForNull Secret secret) {
+            this.secret = secret == null || secret.getPlainText().isEmpty() ? null : secret;
+            save();
+        }
+
+        @Override
+        public GlobalConfigurationCategory getCategory() {
+            return GlobalConfigurationCategory.get(GlobalConfigurationCategory.Security.class);
+        }
+    }
+}
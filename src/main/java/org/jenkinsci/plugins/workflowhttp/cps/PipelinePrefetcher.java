@@ -0,0 +1,199 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.TaskListener;
+import hudson.slaves.EnvironmentVariablesNodeProperty;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+/**
+ * Fetches the pipelines of jobs using {@link CpsHttpFlowDefinition} with caching into the cache,
+ * when Jenkins starts and then periodically, so that builds find them there. URLs are expanded with
+ * the job variables, global variables and parameter defaults; those still referring to other
+ * variables are skipped, as their value is only known once a build starts.
+ *
+ * <p>Off unless {@code ENABLED} is set. Entries which would expire before the next run are
+ * refreshed, conditionally where possible.
+ */
+@Extension
+public final class PipelinePrefetcher extends AsyncPeriodicWork {
+
+    static final boolean ENABLED = Boolean.getBoolean(PipelinePrefetcher.class.getName() + ".ENABLED");
+    /** Pipelines fetched at once. */
+    static final int PARALLELISM = Integer.getInteger(PipelinePrefetcher.class.getName() + ".PARALLELISM", 8);
+
+    static final long RECURRENCE_PERIOD =
+            Long.getLong(PipelinePrefetcher.class.getName() + ".RECURRENCE_PERIOD", TimeUnit.MINUTES.toMillis(30));
+
+    public PipelinePrefetcher() {
+        super("Pipeline prefetch");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return ENABLED ? RECURRENCE_PERIOD : TimeUnit.DAYS.toMillis(1);
+    }
+
+    /** Right after jobs are loaded, rather than at a random point of the first period. */
+    @Override
+    public long getInitialDelay() {
+        return 0;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws InterruptedException {
+        if (!ENABLED) {
+            return;
+        }
+        prefetch(Instant.now().plusMillis(RECURRENCE_PERIOD), listener);
+    }
+
+    /**
+     * Fetches the pipelines of all jobs which are not cached or expire before {@code staleBefore}.
+     *
+     * @return the number of pipelines cached, whether fetched, revalidated or already fresh
+     */
+    int prefetch(Instant staleBefore, TaskListener listener) throws InterruptedException {
+        Map<String, ScriptRequest> requests = new LinkedHashMap<>();
+        Map<String, Long> cachingSeconds = new LinkedHashMap<>();
+        forEachRequest(listener, (request, caching) -> {
+            requests.putIfAbsent(request.getCacheKey(), request);
+            cachingSeconds.merge(request.getCacheKey(), (long) caching.getCachingSeconds(), Math::max);
+        });
+        listener.getLogger().println("Prefetching " + requests.size() + " pipelines");
+
+        Semaphore slots = new Semaphore(PARALLELISM);
+        AtomicInteger fetched = new AtomicInteger();
+        for (Map.Entry<String, ScriptRequest> request : requests.entrySet()) {
+            slots.acquire();
+            CompletableFuture<CacheEntry> refresh;
+            try {
+                refresh = CacheEntry.cache.refreshAsync(
+                        request.getValue(), cachingSeconds.get(request.getKey()), staleBefore, listener);
+            } catch (RuntimeException x) {
+                // do not let one job hold a slot, or stop the others from being prefetched
+                refresh = CompletableFuture.failedFuture(x);
+            }
+            refresh.whenComplete((entry, x) -> {
+                slots.release();
+                if (x != null) {
+                    listener.getLogger().println("Failed to prefetch " + request.getValue().getUrl() + ": " + x);
+                } else {
+                    fetched.incrementAndGet();
+                }
+            });
+        }
+        slots.acquire(PARALLELISM);
+        slots.release(PARALLELISM);
+        listener.getLogger().println(fetched.get() + " pipelines cached");
+        return fetched.get();
+    }
+
+    /** Calls {@code action} with the request of each job caching its pipeline, and its caching configuration. */
+    private static void forEachRequest(TaskListener listener, BiConsumer<ScriptRequest, CachingConfiguration> action) {
+        for (WorkflowJob job : Jenkins.get().allItems(WorkflowJob.class)) {
+            if (job.isDisabled() || !(job.getDefinition() instanceof CpsHttpFlowDefinition)) {
+                continue;
+            }
+            CpsHttpFlowDefinition definition = (CpsHttpFlowDefinition) job.getDefinition();
+            CachingConfiguration caching = definition.getCachingConfiguration();
+            if (caching == null) {
+                continue;
+            }
+            EnvVars env = environmentOf(job);
+            if (caching.isExcluded(env)) {
+                continue;
+            }
+            ScriptRequest request = definition.newRequest(env);
+            if (request.getUrl().contains("$")
+                    || request.getMirrors().stream().anyMatch(mirror -> mirror.contains("$"))) {
+                listener.getLogger()
+                        .println("Skipping " + job.getFullName() + ": " + request.getUrl()
+                                + " refers to build variables");
+                continue;
+            }
+            action.accept(request, caching);
+        }
+    }
+
+    /**
+     * The requests jobs make for their cached pipelines, as far as known without starting a build, by
+     * cache key, so that pipelines can be fetched with the headers and credentials of the jobs using them.
+     */
+    static Map<String, ScriptRequest> requestsOfJobs() {
+        Map<String, ScriptRequest> requests = new LinkedHashMap<>();
+        forEachRequest(TaskListener.NULL, (request, caching) -> requests.putIfAbsent(request.getCacheKey(), request));
+        return requests;
+    }
+
+    /**
+     * The requests to warm the cache for {@code urls} with: for each URL, those of the jobs fetching
+     * it, with their headers and credentials, or, if no job does, one without headers or credentials.
+     */
+    static List<ScriptRequest> requestsFor(Collection<String> urls) {
+        Collection<ScriptRequest> ofJobs = requestsOfJobs().values();
+        List<ScriptRequest> requests = new ArrayList<>();
+        for (String url : urls) {
+            int before = requests.size();
+            for (ScriptRequest request : ofJobs) {
+                if (request.getUrl().equals(url)) {
+                    requests.add(request);
+                }
+            }
+            if (requests.size() == before) {
+                requests.add(new ScriptRequest(url, null, null, null, null, 0));
+            }
+        }
+        return requests;
+    }
+
+    /** The variables of a build of {@code job} known without starting one. */
+    static EnvVars environmentOf(WorkflowJob job) {
+        EnvVars env = new EnvVars();
+        EnvironmentVariablesNodeProperty global =
+                Jenkins.get().getGlobalNodeProperties().get(EnvironmentVariablesNodeProperty.class);
+        if (global != null) {
+            env.putAll(global.getEnvVars());
+        }
+        env.putAll(job.getCharacteristicEnvVars());
+        ParametersDefinitionProperty parameters = job.getProperty(ParametersDefinitionProperty.class);
+        if (parameters != null) {
+            for (ParameterDefinition parameter : parameters.getParameterDefinitions()) {
+                String value = defaultValue(parameter);
+                if (value != null) {
+                    env.put(parameter.getName(), value);
+                }
+            }
+        }
+        return env;
+    }
+
+    @CheckForNull
+    private static String defaultValue(ParameterDefinition parameter) {
+        ParameterValue value = parameter.getDefaultParameterValue();
+        if (value == null) {
+            return null;
+        }
+        Object object = value.getValue();
+        return object instanceof String || object instanceof Boolean || object instanceof Number
+                ? object.toString()
+                : null;
+    }
+}
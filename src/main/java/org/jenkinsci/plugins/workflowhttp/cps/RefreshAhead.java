@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * Refreshes popular cached pipelines shortly before they expire, so that the first build after
+ * expiry does not have to wait for a fetch. Refreshes are spread at random over the first half of
+ * the time left, so that entries cached together are not all refreshed together.
+ *
+ * @see CachingConfiguration#isRefreshAhead
+ */
+@Extension
+public final class RefreshAhead extends PeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(RefreshAhead.class.getName());
+
+    /** Builds which must use an entry before it is refreshed ahead of its expiry. */
+    static final int MIN_HITS = Integer.getInteger(RefreshAhead.class.getName() + ".MIN_HITS", 3);
+    /** Fraction of the caching time, at the end of it, during which an entry may be refreshed. */
+    static final double WINDOW = SystemProperty.getDouble(RefreshAhead.class.getName() + ".WINDOW", 0.2, 0, 1);
+
+    static final long CHECK_INTERVAL =
+            Long.getLong(RefreshAhead.class.getName() + ".CHECK_INTERVAL", TimeUnit.SECONDS.toMillis(10));
+
+    /** Entries used by builds, by cache key. */
+    static final ConcurrentHashMap<String, Candidate> candidates = new ConcurrentHashMap<>();
+
+    /** Records a build which used {@code entry}, counting towards refreshing it ahead of its expiry. */
+    static void recordHit(ScriptRequest request, long cachingSeconds, CacheEntry entry) {
+        candidates
+                .compute(
+                        request.getCacheKey(),
+                        (key, candidate) -> candidate != null && candidate.entry == entry
+                                ? candidate
+                                : new Candidate(request, cachingSeconds, entry))
+                .hits
+                .incrementAndGet();
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return CHECK_INTERVAL;
+    }
+
+    @Override
+    protected void doRun() {
+        due(Instant.now()).forEach((candidate, delay) -> {
+            LOGGER.log(Level.FINE, "Refreshing {0} in {1}ms", new Object[] {candidate.request.getUrl(), delay});
+            Timer.get()
+                    .schedule(
+                            () -> CacheEntry.cache.refreshInBackground(
+                                    candidate.request,
+                                    candidate.cachingSeconds,
+                                    candidate.entry.expirationDate.plusNanos(1)),
+                            delay,
+                            TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * Picks the entries to refresh as of {@code now}, marking them as scheduled, and forgets those
+     * which expired or were evicted.
+     *
+     * @return the delay before refreshing each, in milliseconds
+     */
+    static Map<Candidate, Long> due(Instant now) {
+        Map<Candidate, Long> due = new LinkedHashMap<>();
+        Iterator<Candidate> it = candidates.values().iterator();
+        while (it.hasNext()) {
+            Candidate candidate = it.next();
+            if (candidate.entry.isExpired() || !CacheEntry.cache.contains(candidate.request.getCacheKey())) {
+                it.remove(); // too late, or evicted; builds will record it again
+                continue;
+            }
+            if (candidate.scheduled || candidate.hits.get() < MIN_HITS) {
+                continue;
+            }
+            long remaining = Duration.between(now, candidate.entry.expirationDate).toMillis();
+            if (remaining > TimeUnit.SECONDS.toMillis(candidate.cachingSeconds) * WINDOW) {
+                continue;
+            }
+            candidate.scheduled = true;
+            due.put(candidate, ThreadLocalRandom.current().nextLong(remaining / 2 + 1));
+        }
+        return due;
+    }
+
+    static final class Candidate {
+        final ScriptRequest request;
+        final long cachingSeconds;
+        final CacheEntry entry;
+        final AtomicInteger hits = new AtomicInteger();
+        volatile boolean scheduled;
+
+        Candidate(ScriptRequest request, long cachingSeconds, CacheEntry entry) {
+            this.request = request;
+            this.cachingSeconds = cachingSeconds;
+            this.entry = entry;
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package org.jenkinsci.plugins.workflowhttp.cps;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.AbortException;
 import hudson.FilePath;
 import hudson.model.Computer;
 import hudson.model.TaskListener;
 import hudson.remoting.VirtualChannel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -13,42 +17,129 @@ import java.io.Serializable;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
 import jenkins.MasterToSlaveFileCallable;
 import jenkins.security.MasterToSlaveCallable;
 import jenkins.util.JenkinsJVM;
+import jenkins.util.Timer;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.hc.client5.http.async.methods.SimpleBody;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestProducer;
+import org.apache.hc.client5.http.async.methods.SimpleResponseConsumer;
 import org.apache.hc.client5.http.classic.methods.HttpGet;
 import org.apache.hc.client5.http.classic.methods.HttpPut;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.concurrent.FutureCallback;
 import org.apache.hc.core5.http.ClassicHttpRequest;
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
 import org.apache.hc.core5.http.io.entity.FileEntity;
 import org.apache.hc.core5.http.message.StatusLine;
+import org.apache.hc.core5.http.nio.support.AbstractBinResponseConsumer;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.net.URIAuthority;
+import org.apache.hc.core5.util.TimeValue;
 
 /** Utility to make HTTP connections with protection against transient failures. */
 public final class RobustHTTPClient implements Serializable {
 
     private static final long serialVersionUID = 1;
 
+    private static final Logger LOGGER = Logger.getLogger(RobustHTTPClient.class.getName());
+
     private static final ExecutorService executors =
             JenkinsJVM.isJenkinsJVM() ? Computer.threadPoolForRemoting : Executors.newCachedThreadPool();
 
+    private static final int MAX_CONNECTIONS =
+            Integer.getInteger(RobustHTTPClient.class.getName() + ".MAX_CONNECTIONS", 100);
+    private static final int MAX_CONNECTIONS_PER_ROUTE =
+            Integer.getInteger(RobustHTTPClient.class.getName() + ".MAX_CONNECTIONS_PER_ROUTE", 20);
+    private static final long KEEP_ALIVE =
+            Long.getLong(RobustHTTPClient.class.getName() + ".KEEP_ALIVE", TimeUnit.MINUTES.toMillis(1));
+    private static final long IDLE_TIMEOUT =
+            Long.getLong(RobustHTTPClient.class.getName() + ".IDLE_TIMEOUT", TimeUnit.SECONDS.toMillis(30));
+
+    /**
+     * Protocol of {@link #connectAsync} over pooled connections: {@code NEGOTIATE} uses HTTP/2 where
+     * negotiated over TLS and HTTP/1.1 otherwise, {@code FORCE_HTTP_1} always uses HTTP/1.1. Forcing
+     * HTTP/2 for all hosts is not supported, see {@link #HTTP2_HOSTS} instead.
+     */
+    static final HttpVersionPolicy HTTP_VERSION_POLICY = pooledVersionPolicy(SystemProperty.getEnum(
+            RobustHTTPClient.class.getName() + ".HTTP_VERSION_POLICY", HttpVersionPolicy.NEGOTIATE));
+
+    /**
+     * Hosts, like {@code example.com} or {@code https://example.com:8443}, which {@link #connectAsync}
+     * requests over HTTP/2 only, negotiated over TLS or assumed in clear text, with a single connection
+     * per host carrying all concurrent requests to it. A host failing to respond over HTTP/2 which does
+     * over HTTP/1.1 is requested over pooled connections from then on. Separated by commas or spaces.
+     */
+    static final Set<String> HTTP2_HOSTS = ConcurrentHashMap.newKeySet();
+
+    static {
+        for (String host : System.getProperty(RobustHTTPClient.class.getName() + ".HTTP2_HOSTS", "")
+                .split("[,\\s]+")) {
+            if (!host.isEmpty()) {
+                HTTP2_HOSTS.add(host);
+            }
+        }
+    }
+
+    /** Hosts of {@link #HTTP2_HOSTS} found to only support HTTP/1.1, as given by {@link #hostOf}. */
+    static final Set<String> http1Hosts = ConcurrentHashMap.newKeySet();
+
+    /** How much of the body of an error response to keep for its message. */
+    private static final int ERROR_PREVIEW_SIZE = 1024;
+
+    /** Retries allowed in this JVM, shared by all clients so that retries cannot multiply the load of an outage. */
+    static final RetryBudget retryBudget = new RetryBudget(
+            Integer.getInteger(RobustHTTPClient.class.getName() + ".RETRY_BUDGET", 100),
+            SystemProperty.getDouble(
+                    RobustHTTPClient.class.getName() + ".RETRY_BUDGET_RATIO", 0.2, 0, Double.MAX_VALUE));
+
     private int stopAfterAttemptNumber;
+    private Backoff backoff;
+    private double backoffBase;
     // all times are measured in milliseconds
     private long waitMultiplier;
     private long waitMaximum;
     private long timeout;
+    private long maxResponseSize;
 
     /**
      * Creates a client configured with reasonable defaults from system properties. THIS IS A ADAPTED
      * COPY OF https://github.com/jenkinsci/apache-httpcomponents-client-4-api-plugin but uses
-     * httpclient5 and retries on all errors
+     * httpclient5 and retries on all errors but client errors, see {@link #isRetryable}
      *
      * <p>This constructor should be run in the Jenkins master. To make requests from an agent JVM,
      * create a {@code final} field of this type in your {@link MasterToSlaveCallable} or similar; set
@@ -59,10 +150,109 @@ public final class RobustHTTPClient implements Serializable {
         JenkinsJVM.checkJenkinsJVM();
         this.stopAfterAttemptNumber =
                 Integer.getInteger(RobustHTTPClient.class.getName() + ".STOP_AFTER_ATTEMPT_NUMBER", 10);
+        this.backoff = SystemProperty.getEnum(RobustHTTPClient.class.getName() + ".BACKOFF", Backoff.FULL_JITTER);
+        this.backoffBase =
+                SystemProperty.getDouble(RobustHTTPClient.class.getName() + ".BACKOFF_BASE", 2, 1, Double.MAX_VALUE);
         this.waitMultiplier = Long.getLong(RobustHTTPClient.class.getName() + ".WAIT_MULTIPLIER", 100);
         this.waitMaximum =
                 Long.getLong(RobustHTTPClient.class.getName() + ".WAIT_MAXIMUM", TimeUnit.MINUTES.toMillis(5));
         this.timeout = Long.getLong(RobustHTTPClient.class.getName() + ".TIMEOUT", TimeUnit.MINUTES.toMillis(15));
+        this.maxResponseSize = Long.getLong(RobustHTTPClient.class.getName() + ".MAX_RESPONSE_SIZE", Long.MAX_VALUE);
+    }
+
+    /**
+     * The client used for all connections in this JVM. Its connections are pooled, so that successive
+     * requests to the same host reuse an open (and, for HTTPS, already negotiated) connection.
+     */
+    static CloseableHttpClient sharedClient() {
+        return SharedClient.INSTANCE;
+    }
+
+    private static final class SharedClient {
+        static final CloseableHttpClient INSTANCE = create();
+
+        private static CloseableHttpClient create() {
+            PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                    .useSystemProperties()
+                    .setMaxConnTotal(MAX_CONNECTIONS)
+                    .setMaxConnPerRoute(MAX_CONNECTIONS_PER_ROUTE)
+                    .build();
+            TimeValue keepAlive = TimeValue.ofMilliseconds(KEEP_ALIVE);
+            return HttpClients.custom()
+                    .useSystemProperties()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy((response, context) -> {
+                        TimeValue requested =
+                                DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        return requested.compareTo(keepAlive) < 0 ? requested : keepAlive;
+                    })
+                    .evictExpiredConnections()
+                    .evictIdleConnections(TimeValue.ofMilliseconds(IDLE_TIMEOUT))
+                    .build();
+        }
+    }
+
+    /** Like {@link #sharedClient}, for {@link #connectAsync}, following {@link #HTTP_VERSION_POLICY}. */
+    static CloseableHttpAsyncClient sharedAsyncClient() {
+        return SharedAsyncClient.INSTANCE;
+    }
+
+    private static HttpVersionPolicy pooledVersionPolicy(HttpVersionPolicy policy) {
+        if (policy == HttpVersionPolicy.FORCE_HTTP_2) {
+            LOGGER.warning("FORCE_HTTP_2 would break hosts only supporting HTTP/1.1, using NEGOTIATE: list the hosts"
+                    + " to request over HTTP/2 in " + RobustHTTPClient.class.getName() + ".HTTP2_HOSTS instead");
+            return HttpVersionPolicy.NEGOTIATE;
+        }
+        return policy;
+    }
+
+    /** Whether {@link #connectAsync} requests {@code host}, as given by {@link #hostOf}, over HTTP/2 only. */
+    static boolean isMultiplexed(String host, String hostName) {
+        return (HTTP2_HOSTS.contains(host) || HTTP2_HOSTS.contains(hostName)) && !http1Hosts.contains(host);
+    }
+
+    private static final class SharedAsyncClient {
+        static final CloseableHttpAsyncClient INSTANCE = start(createPooling());
+
+        static CloseableHttpAsyncClient start(CloseableHttpAsyncClient client) {
+            client.start();
+            return client;
+        }
+
+        private static CloseableHttpAsyncClient createPooling() {
+            PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                    .useSystemProperties()
+                    .setMaxConnTotal(MAX_CONNECTIONS)
+                    .setMaxConnPerRoute(MAX_CONNECTIONS_PER_ROUTE)
+                    .setDefaultTlsConfig(TlsConfig.custom().setVersionPolicy(HTTP_VERSION_POLICY).build())
+                    .build();
+            return HttpAsyncClients.custom()
+                    .useSystemProperties()
+                    .setConnectionManager(connectionManager)
+                    .evictExpiredConnections()
+                    .evictIdleConnections(TimeValue.ofMilliseconds(IDLE_TIMEOUT))
+                    .build();
+        }
+    }
+
+    /** Multiplexes requests to a host over a single connection, for {@link #HTTP2_HOSTS}. */
+    private static final class SharedMultiplexingClient {
+        static final CloseableHttpAsyncClient INSTANCE = SharedAsyncClient.start(HttpAsyncClients.customHttp2()
+                .useSystemProperties()
+                .setH2Config(H2Config.custom().setPushEnabled(false).build())
+                .build());
+    }
+
+    static ScheduledExecutorService scheduler() {
+        return JenkinsJVM.isJenkinsJVM() ? Timer.get() : FallbackScheduler.INSTANCE;
+    }
+
+    private static final class FallbackScheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "RobustHTTPClient retries");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     /**
@@ -97,13 +287,22 @@ public final class RobustHTTPClient implements Serializable {
 
     /**
      * Initial time between first and second upload/download attempts. Subsequent ones increase
-     * exponentially. Note that this is not a <em>randomized</em> exponential backoff; and the base of
-     * the exponent is currently hard-coded to 2.
+     * exponentially, as set by {@link #setBackoff}.
      */
     public void setWaitMultiplier(long waitMultiplier, TimeUnit unit) {
         this.waitMultiplier = unit.toMillis(waitMultiplier);
     }
 
+    /**
+     * How the time between attempts grows.
+     *
+     * @param base the base of the exponent, for strategies which use one
+     */
+    public void setBackoff(Backoff backoff, double base) {
+        this.backoff = backoff;
+        this.backoffBase = base;
+    }
+
     /** Maximum time between upload/download attempts. */
     public void setWaitMaximum(long waitMaximum, TimeUnit unit) {
         this.waitMaximum = unit.toMillis(waitMaximum);
@@ -114,9 +313,18 @@ public final class RobustHTTPClient implements Serializable {
         this.timeout = unit.toMillis(timeout);
     }
 
+    /**
+     * Largest body of a successful response to accept in {@link #connectAsync}, in bytes. Larger
+     * responses fail without being retried.
+     */
+    public void setMaxResponseSize(long maxResponseSize) {
+        this.maxResponseSize = maxResponseSize;
+    }
+
     /**
      * Perform an HTTP network operation with appropriate timeouts and retries. 2xx status codes are
-     * considered successful. Low-level network errors (for example, DNS failures) and 5xx server
+     * considered successful, as is 304 (only sent in reply to a conditional request, so the caller
+     * asked for it). Low-level network errors (for example, DNS failures) and 5xx server
      * responses are considered retryable, as are timeouts on individual attempts; other response
      * codes (normally 3xx or 4xx) are treated as immediate failures.
      *
@@ -125,7 +333,7 @@ public final class RobustHTTPClient implements Serializable {
      * @param whatVerbose a longer description of the operation, like {@code uploading … to …}, used
      *     when retrying (see {@link #sanitize})
      * @param connectionCreator how to establish a connection prior to getting the server’s response
-     * @param connectionUser what to do, if anything, after a successful (2xx) server response
+     * @param connectionUser what to do, if anything, after a successful (2xx or 304) server response
      * @param listener a place to print messages
      * @throws IOException if there is an unrecoverable error; {@link AbortException} will be used
      *     where appropriate
@@ -138,38 +346,70 @@ public final class RobustHTTPClient implements Serializable {
             @NonNull ConnectionUser connectionUser,
             @NonNull TaskListener listener)
             throws IOException, InterruptedException {
+        connect(whatConcise, whatVerbose, null, connectionCreator, connectionUser, listener);
+    }
+
+    private void connect(
+            String whatConcise,
+            String whatVerbose,
+            @CheckForNull String host,
+            ConnectionCreator connectionCreator,
+            ConnectionUser connectionUser,
+            TaskListener listener)
+            throws IOException, InterruptedException {
+        CircuitBreaker breaker = CircuitBreaker.forHost(host);
+        FetchMetrics.HostMetrics metrics = host != null ? FetchMetrics.host(host) : null;
         AtomicInteger responseCode = new AtomicInteger();
+        retryBudget.deposit();
         int attempt = 1;
+        long wait = 0;
         while (true) {
+            if (breaker != null) {
+                breaker.acquire();
+            }
+            long start = System.nanoTime();
             try {
                 try {
                     executors
                             .submit(() -> {
                                 responseCode.set(0);
-                                try (CloseableHttpClient client = HttpClients.createSystem()) {
-                                    try (CloseableHttpResponse response = connectionCreator.connect(client)) {
-                                        StatusLine statusLine = new StatusLine(response);
-                                        responseCode.set(statusLine.getStatusCode());
-                                        if (responseCode.get() < 200 || responseCode.get() >= 300) {
-                                            String diag;
-                                            HttpEntity entity = response.getEntity();
-                                            if (entity != null) {
-                                                try (InputStream err = entity.getContent()) {
-                                                    String contentEncoding = entity.getContentEncoding();
-                                                    diag = IOUtils.toString(err, contentEncoding);
-                                                }
-                                            } else {
-                                                diag = null;
+                                CloseableHttpClient client = sharedClient();
+                                try (CloseableHttpResponse response = connectionCreator.connect(client)) {
+                                    StatusLine statusLine = new StatusLine(response);
+                                    responseCode.set(statusLine.getStatusCode());
+                                    if ((responseCode.get() < 200 || responseCode.get() >= 300)
+                                            && responseCode.get() != HttpStatus.SC_NOT_MODIFIED) {
+                                        String diag;
+                                        HttpEntity entity = response.getEntity();
+                                        if (entity != null) {
+                                            try (InputStream err = entity.getContent()) {
+                                                diag = new String(
+                                                        err.readNBytes(ERROR_PREVIEW_SIZE),
+                                                        charsetOf(ContentType.parseLenient(entity.getContentType())));
                                             }
-                                            throw new AbortException(String.format(
-                                                    "Failed to %s, response: %d %s, body: %s",
-                                                    whatVerbose,
-                                                    responseCode.get(),
-                                                    statusLine.getReasonPhrase(),
-                                                    diag));
+                                        } else {
+                                            diag = null;
                                         }
-                                        connectionUser.use(response);
+                                        throw new HttpStatusException(
+                                                String.format(
+                                                        "Failed to %s, response: %d %s, body: %s",
+                                                        whatVerbose,
+                                                        responseCode.get(),
+                                                        statusLine.getReasonPhrase(),
+                                                        diag),
+                                                responseCode.get(),
+                                                retryAfter(response));
+                                    }
+                                    if (metrics != null && response.getEntity() != null) {
+                                        metrics.bytesReceived.add(
+                                                Math.max(0, response.getEntity().getContentLength()));
                                     }
+                                    if (metrics != null && responseCode.get() == HttpStatus.SC_NOT_MODIFIED) {
+                                        metrics.notModified.increment();
+                                    }
+                                    connectionUser.use(response);
+                                    // read whatever is left so the connection can go back to the pool
+                                    EntityUtils.consume(response.getEntity());
                                 }
                                 return null; // success
                             })
@@ -179,15 +419,27 @@ public final class RobustHTTPClient implements Serializable {
                             new IOException(x)); // ExecutionException unwrapped & treated as retryable below
                 }
                 listener.getLogger().flush(); // seems we can get interleaved output with master otherwise
+                attempted(breaker, metrics, start, null);
                 return; // success
+            } catch (InterruptedException x) {
+                attempted(breaker, metrics, start, x);
+                throw x;
             } catch (ExecutionException wrapped) {
                 Throwable x = wrapped.getCause();
+                attempted(breaker, metrics, start, x);
                 if (x instanceof IOException) {
-                    if (attempt == stopAfterAttemptNumber) {
+                    if (attempt == stopAfterAttemptNumber || !isRetryable(x)) {
                         throw (IOException) x; // last chance
                     }
-                    // TODO exponent base could be made into a configurable parameter
-                    Thread.sleep(Math.min(((long) Math.pow(2d, attempt)) * waitMultiplier, waitMaximum));
+                    if (!retryBudget.withdraw()) {
+                        listener.getLogger().printf("Not retrying %s: too many retries in progress%n", whatConcise);
+                        throw (IOException) x;
+                    }
+                    if (metrics != null) {
+                        metrics.retries.increment();
+                    }
+                    wait = waitBefore(attempt, wait, x);
+                    Thread.sleep(wait);
                     listener.getLogger()
                             .printf(
                                     "Retrying %s after: %s%n",
@@ -206,6 +458,499 @@ public final class RobustHTTPClient implements Serializable {
         }
     }
 
+    /**
+     * Like {@link #connect}, but without blocking any thread: attempts run on a shared asynchronous
+     * client, and retries are scheduled on a timer rather than waited for. The whole response body
+     * is buffered, so this is meant for small payloads: see {@link #setMaxResponseSize}.
+     *
+     * <p>Hosts which keep failing are given a rest: while their {@link CircuitBreaker} is open,
+     * attempts fail at once with an {@link AbortException} instead of being retried.
+     *
+     * @param requestCreator creates the request for each attempt
+     * @return a future completed with the first successful (2xx or 304) response, or with the last
+     *     error once attempts are exhausted; {@link AbortException} will be used where appropriate
+     */
+    public CompletableFuture<SimpleHttpResponse> connectAsync(
+            String whatConcise,
+            String whatVerbose,
+            @NonNull Supplier<SimpleHttpRequest> requestCreator,
+            @NonNull TaskListener listener) {
+        CompletableFuture<SimpleHttpResponse> result = new CompletableFuture<>();
+        retryBudget.deposit();
+        attemptAsync(1, 0, whatConcise, whatVerbose, requestCreator, listener, result);
+        return result;
+    }
+
+    private void attemptAsync(
+            int attempt,
+            long previousWait,
+            String whatConcise,
+            String whatVerbose,
+            Supplier<SimpleHttpRequest> requestCreator,
+            TaskListener listener,
+            CompletableFuture<SimpleHttpResponse> result) {
+        SimpleHttpRequest request;
+        String host;
+        CircuitBreaker breaker;
+        FetchMetrics.HostMetrics metrics;
+        try {
+            request = requestCreator.get();
+            if (!request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+                request.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+            }
+            host = hostOf(request);
+            breaker = CircuitBreaker.forHost(host);
+            metrics = host != null ? FetchMetrics.host(host) : null;
+            if (breaker != null) {
+                breaker.acquire();
+            }
+        } catch (RuntimeException | AbortException x) {
+            result.completeExceptionally(x);
+            return;
+        }
+        long start = System.nanoTime();
+        AtomicReference<Future<SimpleHttpResponse>> call = new AtomicReference<>();
+        CompletableFuture<SimpleHttpResponse> response;
+        try {
+            if (host != null && isMultiplexed(host, request.getAuthority().getHostName())) {
+                response = execute(SharedMultiplexingClient.INSTANCE, request, call)
+                        .exceptionallyCompose(h2Error -> fallBackToHttp1(host, request, h2Error, call, listener));
+            } else {
+                response = execute(sharedAsyncClient(), request, call);
+            }
+        } catch (RuntimeException x) {
+            attempted(breaker, metrics, start, x);
+            result.completeExceptionally(x);
+            return;
+        }
+        response.orTimeout(timeout, TimeUnit.MILLISECONDS).whenComplete((r, error) -> {
+            Throwable x = error instanceof CompletionException ? error.getCause() : error;
+            if (x == null) {
+                int code = r.getCode();
+                boolean success = (code >= 200 && code < 300) || code == HttpStatus.SC_NOT_MODIFIED;
+                if (metrics != null) {
+                    metrics.bytesReceived.add(r.getBodyBytes() != null ? r.getBodyBytes().length : 0);
+                    if (code == HttpStatus.SC_NOT_MODIFIED) {
+                        metrics.notModified.increment();
+                    }
+                }
+                try {
+                    SimpleHttpResponse decoded =
+                            decompress(r, success ? maxResponseSize : ERROR_PREVIEW_SIZE, !success);
+                    if (success) {
+                        attempted(breaker, metrics, start, null);
+                        listener.getLogger().flush();
+                        result.complete(decoded);
+                        return;
+                    }
+                    x = new HttpStatusException(
+                            String.format(
+                                    "Failed to %s, response: %d %s, body: %s",
+                                    whatVerbose, code, r.getReasonPhrase(), getBodyText(decoded)),
+                            code,
+                            retryAfter(r));
+                } catch (IOException decompressionError) {
+                    x = decompressionError;
+                }
+            } else {
+                Future<SimpleHttpResponse> pending = call.get();
+                if (pending != null) {
+                    pending.cancel(true);
+                }
+                if (x instanceof TimeoutException) {
+                    x = new IOException(x);
+                }
+            }
+            attempted(breaker, metrics, start, x);
+            if (!isRetryable(x) || attempt == stopAfterAttemptNumber) {
+                result.completeExceptionally(x); // all other exceptions considered fatal
+                return;
+            }
+            if (!retryBudget.withdraw()) {
+                listener.getLogger().printf("Not retrying %s: too many retries in progress%n", whatConcise);
+                result.completeExceptionally(x);
+                return;
+            }
+            if (metrics != null) {
+                metrics.retries.increment();
+            }
+            long wait = waitBefore(attempt, previousWait, x);
+            listener.getLogger()
+                    .printf(
+                            "Retrying %s after: %s%n",
+                            whatConcise, x instanceof AbortException ? x.getMessage() : x.toString());
+            scheduler()
+                    .schedule(
+                            () -> attemptAsync(
+                                    attempt + 1, wait, whatConcise, whatVerbose, requestCreator, listener, result),
+                            wait,
+                            TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private CompletableFuture<SimpleHttpResponse> execute(
+            CloseableHttpAsyncClient client,
+            SimpleHttpRequest request,
+            AtomicReference<Future<SimpleHttpResponse>> call) {
+        CompletableFuture<SimpleHttpResponse> response = new CompletableFuture<>();
+        call.set(client.execute(
+                SimpleRequestProducer.create(request),
+                new LimitedResponseConsumer(maxResponseSize),
+                new FutureCallback<SimpleHttpResponse>() {
+                    @Override
+                    public void completed(SimpleHttpResponse r) {
+                        response.complete(r);
+                    }
+
+                    @Override
+                    public void failed(Exception x) {
+                        response.completeExceptionally(x);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        response.cancel(false);
+                    }
+                }));
+        return response;
+    }
+
+    /**
+     * Repeats a request which failed over HTTP/2 over pooled connections. If that succeeds, the host is
+     * taken not to support HTTP/2; otherwise, the failure is likely unrelated to the protocol.
+     */
+    private CompletableFuture<SimpleHttpResponse> fallBackToHttp1(
+            String host,
+            SimpleHttpRequest request,
+            Throwable h2Error,
+            AtomicReference<Future<SimpleHttpResponse>> call,
+            TaskListener listener) {
+        Throwable x = h2Error instanceof CompletionException ? h2Error.getCause() : h2Error;
+        if (!(x instanceof IOException) || x instanceof ResponseTooLargeException) {
+            return CompletableFuture.failedFuture(x);
+        }
+        listener.getLogger().printf("HTTP/2 request to %s failed, trying HTTP/1.1: %s%n", host, x);
+        return execute(sharedAsyncClient(), request, call).thenApply(r -> {
+            if (http1Hosts.add(host)) {
+                LOGGER.log(Level.INFO, "{0} does not support HTTP/2, requesting it over HTTP/1.1 from now on", host);
+            }
+            return r;
+        });
+    }
+
+    /** Records the outcome of an attempt started at {@code start}, as given by {@link System#nanoTime}. */
+    private static void attempted(
+            @CheckForNull CircuitBreaker breaker,
+            @CheckForNull FetchMetrics.HostMetrics metrics,
+            long start,
+            @CheckForNull Throwable failure) {
+        if (breaker != null) {
+            breaker.record(failure);
+        }
+        if (metrics != null) {
+            metrics.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failure != null);
+        }
+    }
+
+    /** Identifies the host of a URL, like {@code https://example.com:8443}, for per-host state. */
+    static String hostOf(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + (url.getPort() != -1 ? ":" + url.getPort() : "");
+    }
+
+    @CheckForNull
+    private static String hostOf(SimpleHttpRequest request) {
+        URIAuthority authority = request.getAuthority();
+        if (authority == null) {
+            return null;
+        }
+        return request.getScheme() + "://" + authority.getHostName()
+                + (authority.getPort() != -1 ? ":" + authority.getPort() : "");
+    }
+
+    /**
+     * Waits for a future such as one returned by {@link #connectAsync}, rethrowing its failure as
+     * {@link #connect} would have thrown it.
+     */
+    public static <T> T await(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /** The body of a response from {@link #connectAsync}, decoded as per its content type. */
+    public static String getBodyText(SimpleHttpResponse response) {
+        SimpleBody body = response.getBody();
+        if (body == null || body.getBodyBytes() == null) {
+            return "";
+        }
+        return new String(body.getBodyBytes(), charsetOf(body.getContentType()));
+    }
+
+    /**
+     * Undoes a {@code gzip} content encoding, which {@link #connectAsync} asks for.
+     *
+     * @param maxSize largest decompressed body to accept
+     * @param preview whether to keep what fits in {@code maxSize}, and what could be decompressed from
+     *     a truncated body, rather than failing
+     */
+    private static SimpleHttpResponse decompress(SimpleHttpResponse response, long maxSize, boolean preview)
+            throws IOException {
+        Header encoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+        if (encoding == null
+                || !(encoding.getValue().equalsIgnoreCase("gzip") || encoding.getValue().equalsIgnoreCase("x-gzip"))
+                || response.getBodyBytes() == null) {
+            return response;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.getBodyBytes()))) {
+            byte[] chunk = new byte[8192];
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                if (out.size() + n > maxSize) {
+                    if (preview) {
+                        out.write(chunk, 0, (int) (maxSize - out.size()));
+                        break;
+                    }
+                    throw new ResponseTooLargeException(
+                            "Decompressed response is larger than the maximum of " + maxSize);
+                }
+                out.write(chunk, 0, n);
+            }
+        } catch (EOFException x) {
+            if (!preview) {
+                throw x;
+            }
+        }
+        SimpleHttpResponse decoded = SimpleHttpResponse.copy(response);
+        decoded.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+        decoded.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+        decoded.setBody(out.toByteArray(), response.getContentType());
+        return decoded;
+    }
+
+    /** The charset of a content type, defaulting to UTF-8. */
+    static Charset charsetOf(@CheckForNull ContentType contentType) {
+        Charset charset = contentType != null ? contentType.getCharset() : null;
+        return charset != null ? charset : StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Buffers a response like {@link SimpleResponseConsumer}, but only up to a maximum size: larger
+     * successful responses are abandoned as soon as this is known, and only the start of an error
+     * response is kept.
+     */
+    private static final class LimitedResponseConsumer extends AbstractBinResponseConsumer<SimpleHttpResponse> {
+        private final long maxSize;
+        private SimpleHttpResponse response;
+        private ContentType contentType;
+        private ByteArrayOutputStream buffer;
+        private boolean error;
+
+        LimitedResponseConsumer(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected void start(HttpResponse response, ContentType contentType) throws IOException {
+            this.response = SimpleHttpResponse.copy(response);
+            this.contentType = contentType;
+            this.buffer = new ByteArrayOutputStream();
+            error = response.getCode() >= 300;
+            Header contentLength = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+            if (!error && contentLength != null) {
+                try {
+                    checkSize(Long.parseLong(contentLength.getValue()));
+                } catch (NumberFormatException x) {
+                    // let the actual length be checked
+                }
+            }
+        }
+
+        @Override
+        protected int capacityIncrement() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        protected void data(ByteBuffer src, boolean endOfStream) throws IOException {
+            int length = src.remaining();
+            if (error) {
+                // drop whatever does not fit in the preview
+                length = Math.min(length, Math.max(0, ERROR_PREVIEW_SIZE - buffer.size()));
+            } else {
+                checkSize((long) buffer.size() + length);
+            }
+            byte[] chunk = new byte[length];
+            src.get(chunk);
+            buffer.write(chunk, 0, length);
+            src.position(src.limit());
+        }
+
+        private void checkSize(long size) throws ResponseTooLargeException {
+            if (size > maxSize) {
+                throw new ResponseTooLargeException(
+                        "Response of " + size + " bytes or more is larger than the maximum of " + maxSize);
+            }
+        }
+
+        @Override
+        protected SimpleHttpResponse buildResult() {
+            if (buffer.size() > 0) {
+                response.setBody(buffer.toByteArray(), contentType);
+            }
+            return response;
+        }
+
+        @Override
+        public void releaseResources() {
+            buffer = null;
+        }
+    }
+
+    /** Failure due to a response being larger than allowed. Not worth retrying. */
+    static final class ResponseTooLargeException extends AbortException {
+        private static final long serialVersionUID = 1;
+
+        ResponseTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Whether an attempt failing with {@code x} is worth retrying: I/O errors and error responses are,
+     * except for responses too large, which will not shrink, and client errors, which the same request
+     * will get again, other than {@code 408 Request Timeout} and {@code 429 Too Many Requests}.
+     */
+    static boolean isRetryable(Throwable x) {
+        if (!(x instanceof IOException) || x instanceof ResponseTooLargeException) {
+            return false;
+        }
+        if (x instanceof HttpStatusException) {
+            int code = ((HttpStatusException) x).statusCode;
+            return code < 400
+                    || code >= 500
+                    || code == HttpStatus.SC_REQUEST_TIMEOUT
+                    || code == HttpStatus.SC_TOO_MANY_REQUESTS;
+        }
+        return true;
+    }
+
+    /**
+     * Time to wait after a failed attempt before the next one. A server asking to retry after a given
+     * time is obeyed, up to the maximum wait.
+     */
+    private long waitBefore(int attempt, long previousWait, Throwable failure) {
+        long wait = backoff.delay(attempt, previousWait, waitMultiplier, backoffBase, waitMaximum);
+        if (failure instanceof HttpStatusException) {
+            long retryAfter = ((HttpStatusException) failure).retryAfter;
+            if (retryAfter > wait) {
+                wait = Math.min(retryAfter, waitMaximum);
+            }
+        }
+        return wait;
+    }
+
+    /** The {@code Retry-After} of a 429 or 503 response in milliseconds, or -1 if there is none. */
+    private static long retryAfter(HttpResponse response) {
+        if (response.getCode() != HttpStatus.SC_TOO_MANY_REQUESTS
+                && response.getCode() != HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            return -1;
+        }
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        return header != null ? parseRetryAfter(header.getValue(), Instant.now()) : -1;
+    }
+
+    /** Parses a {@code Retry-After} value, either a number of seconds or a date. */
+    static long parseRetryAfter(String value, Instant now) {
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException x) {
+            Instant date = DateUtils.parseStandardDate(value);
+            return date != null ? Math.max(0, Duration.between(now, date).toMillis()) : -1;
+        }
+    }
+
+    /** How the time between attempts grows with each attempt. */
+    public enum Backoff {
+        /** {@code multiplier * base^attempt}: callers which failed together retry together. */
+        EXPONENTIAL {
+            @Override
+            long delay(int attempt, long previous, long multiplier, double base, long maximum) {
+                return (long) Math.min(multiplier * Math.pow(base, attempt), maximum);
+            }
+        },
+        /** A random time up to what {@link #EXPONENTIAL} would wait. */
+        FULL_JITTER {
+            @Override
+            long delay(int attempt, long previous, long multiplier, double base, long maximum) {
+                long exponential = EXPONENTIAL.delay(attempt, previous, multiplier, base, maximum);
+                return ThreadLocalRandom.current().nextLong(exponential + 1);
+            }
+        },
+        /** A random time between {@code multiplier} and three times the previous wait. */
+        DECORRELATED_JITTER {
+            @Override
+            long delay(int attempt, long previous, long multiplier, double base, long maximum) {
+                long upper = Math.max(multiplier, Math.min(maximum, previous * 3));
+                return Math.min(maximum, ThreadLocalRandom.current().nextLong(multiplier, upper + 1));
+            }
+        };
+
+        abstract long delay(int attempt, long previous, long multiplier, double base, long maximum);
+    }
+
+    /**
+     * Token bucket limiting retries to a fraction of requests. Each request adds {@code ratio} of a
+     * token and each retry takes one, so when most requests fail, retries stop once the initial
+     * {@code capacity} is used up rather than multiplying the load on the failing server.
+     */
+    static final class RetryBudget {
+        private final double capacity;
+        private final double ratio;
+        private double tokens;
+
+        RetryBudget(double capacity, double ratio) {
+            this.capacity = capacity;
+            this.ratio = ratio;
+            this.tokens = capacity;
+        }
+
+        synchronized void deposit() {
+            tokens = Math.min(capacity, tokens + ratio);
+        }
+
+        synchronized boolean withdraw() {
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    /** Failure due to the status code of a response. */
+    static final class HttpStatusException extends AbortException {
+        private static final long serialVersionUID = 1;
+        final int statusCode;
+        /** Time the server asked to wait before retrying, in milliseconds, or -1. */
+        final long retryAfter;
+
+        HttpStatusException(String message, int statusCode, long retryAfter) {
+            super(message);
+            this.statusCode = statusCode;
+            this.retryAfter = retryAfter;
+        }
+    }
+
     /** Upload a file to a URL. */
     public void uploadFile(File f, URL url, TaskListener listener) throws IOException, InterruptedException {
         uploadFile(f, null, url, listener);
@@ -222,6 +967,7 @@ public final class RobustHTTPClient implements Serializable {
         connect(
                 "upload",
                 "upload " + f + " to " + sanitize(url),
+                hostOf(url),
                 client -> {
                     HttpPut put = new HttpPut(url.toString());
                     put.setEntity(new FileEntity(f, ContentType.parse(contentType)));
@@ -239,6 +985,7 @@ public final class RobustHTTPClient implements Serializable {
         connect(
                 "download",
                 "download " + sanitize(url) + " to " + f,
+                hostOf(url),
                 client -> client.execute(new HttpGet(url.toString())),
                 response -> {
                     try (InputStream is = response.getEntity().getContent()) {
@@ -258,7 +1005,8 @@ public final class RobustHTTPClient implements Serializable {
 
     /**
      * How to initiate a connection. For example, call {@link
-     * CloseableHttpClient#execute(ClassicHttpRequest)} on {@link HttpGet#HttpGet(String)}.
+     * CloseableHttpClient#execute(ClassicHttpRequest)} on {@link HttpGet#HttpGet(String)}. The client
+     * is shared, so it must not be closed.
      *
      * @see #connect
      */
@@ -268,7 +1016,7 @@ public final class RobustHTTPClient implements Serializable {
     }
 
     /**
-     * What to do with a successful (2xx) connection. For example, call {@link
+     * What to do with a successful (2xx or 304) connection. For example, call {@link
      * CloseableHttpResponse#getEntity} and {@link HttpEntity#getContent}.
      *
      * @see #connect
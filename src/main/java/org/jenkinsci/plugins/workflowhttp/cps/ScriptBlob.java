@@ -0,0 +1,96 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Text of a pipeline, identified by its SHA-256 hash, so that cache entries for URLs serving the
+ * same script can share it.
+ */
+public final class ScriptBlob {
+
+    private final String hash;
+    /** The script, unless kept {@link #compressed}. */
+    @CheckForNull
+    private final String script;
+    /** The script as gzipped UTF-8. */
+    @CheckForNull
+    private final byte[] compressed;
+    /**
+     * The last decompressed script, so that hits share it until the heap runs short, like they share
+     * {@link #script}.
+     */
+    private volatile SoftReference<String> decompressed = new SoftReference<>(null);
+
+    private ScriptBlob(String hash, @CheckForNull String script, @CheckForNull byte[] compressed) {
+        this.hash = hash;
+        this.script = script;
+        this.compressed = compressed;
+    }
+
+    /**
+     * @param compress whether to keep the script gzipped, unless that would not make it smaller
+     */
+    public static ScriptBlob of(String script, boolean compress) {
+        String hash = DiskCache.hash(script);
+        byte[] compressed = compress ? gzip(script) : null;
+        // not worth it for short scripts
+        if (compressed != null && compressed.length < script.getBytes(StandardCharsets.UTF_8).length) {
+            return new ScriptBlob(hash, null, compressed);
+        }
+        return new ScriptBlob(hash, script, null);
+    }
+
+    /** Hex SHA-256 of the script as UTF-8. */
+    public String getHash() {
+        return hash;
+    }
+
+    public String getScript() {
+        if (script != null) {
+            return script;
+        }
+        String decompressed = this.decompressed.get();
+        if (decompressed == null) {
+            decompressed = gunzip(compressed);
+            this.decompressed = new SoftReference<>(decompressed);
+        }
+        return decompressed;
+    }
+
+    public boolean isCompressed() {
+        return compressed != null;
+    }
+
+    /** Approximate heap used by the script, not counting a decompressed copy the GC may reclaim. */
+    public long getSize() {
+        return script != null ? 2L * script.length() : compressed.length;
+    }
+
+    private static byte[] gzip(String script) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(buffer)) {
+            out.write(script.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static String gunzip(byte[] compressed) {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+import hudson.util.LogTaskListener;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Bounded store of fetched pipelines. Least recently used entries are evicted once either the
+ * number of entries or the size of their scripts exceeds the configured maximum. Entries with the
+ * same script share a single copy of it, which is only counted once. When a {@link DiskCache}
+ * is given, every entry is also written there, and entries missing from memory are looked up there.
+ */
+public final class ScriptCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ScriptCache.class.getName());
+
+    static final int MAX_ENTRIES = Integer.getInteger(ScriptCache.class.getName() + ".MAX_ENTRIES", 1000);
+    static final long MAX_BYTES = Long.getLong(ScriptCache.class.getName() + ".MAX_BYTES", 64L * 1024 * 1024);
+    static final long REVALIDATION_RETENTION =
+            Long.getLong(ScriptCache.class.getName() + ".REVALIDATION_RETENTION", TimeUnit.HOURS.toMillis(1));
+    static final long SWEEP_INTERVAL =
+            Long.getLong(ScriptCache.class.getName() + ".SWEEP_INTERVAL", TimeUnit.MINUTES.toMillis(5));
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    @CheckForNull
+    private final DiskCache disk;
+
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ScriptStore scripts = new ScriptStore();
+    /** Builds which used each entry, by key. */
+    private final Map<String, Long> hits = new HashMap<>();
+    /** The request each entry was last fetched with, by key, so that it can be fetched again alike. */
+    private final Map<String, ScriptRequest> requests = new HashMap<>();
+
+    /** Fetches currently running, by {@link ScriptRequest#getCacheKey}, so that concurrent builds share a GET. */
+    private final ConcurrentHashMap<String, CompletableFuture<CacheEntry>> inFlight = new ConcurrentHashMap<>();
+
+    /** Counts removals, so that an entry read from disk meanwhile is not cached again. */
+    private long removals;
+
+    public ScriptCache(int maxEntries, long maxBytes) {
+        this(maxEntries, maxBytes, null);
+    }
+
+    public ScriptCache(int maxEntries, long maxBytes, @CheckForNull DiskCache disk) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.disk = disk;
+    }
+
+    @CheckForNull
+    public CacheEntry get(String key) {
+        long removalsBefore;
+        synchronized (this) {
+            CacheEntry entry = entries.get(key);
+            if (entry != null || disk == null) {
+                return entry;
+            }
+            removalsBefore = removals;
+        }
+        CacheEntry loaded = disk.load(key);
+        if (loaded == null) {
+            return null;
+        }
+        synchronized (this) {
+            CacheEntry entry = entries.get(key);
+            if (entry != null) {
+                return entry; // put while we were reading the disk, so more recent
+            }
+            if (removals != removalsBefore) {
+                return null; // possibly removed while we were reading the disk
+            }
+            return putInMemory(key, loaded);
+        }
+    }
+
+    /**
+     * Fetches {@code request} into the cache, unless an identical fetch is already in flight, in which
+     * case its result is awaited instead. An expired entry with validators is revalidated. The fetch
+     * does not depend on the calling thread, so if the build which started it is interrupted, it still
+     * completes for any other build waiting for it.
+     */
+    public CacheEntry refresh(ScriptRequest request, long cachingSeconds, TaskListener listener)
+            throws IOException, InterruptedException {
+        return RobustHTTPClient.await(refreshAsync(request, cachingSeconds, Instant.now(), listener));
+    }
+
+    /**
+     * Like {@link #refresh(ScriptRequest, long, TaskListener)}, without waiting, and treating entries
+     * which expire before {@code staleBefore} as expired already.
+     *
+     * <p>A caller joining a fetch in flight gets its result as is: the entry is cached for the {@code
+     * cachingSeconds} of the caller which started the fetch, like any entry shared by jobs caching
+     * the same pipeline for different times, and the {@code staleBefore} of the joining caller is not
+     * checked. The progress of the fetch is only logged to the listener of the caller which started
+     * it; the others get its outcome.
+     */
+    CompletableFuture<CacheEntry> refreshAsync(
+            ScriptRequest request, long cachingSeconds, Instant staleBefore, TaskListener listener) {
+        String key = request.getCacheKey();
+        CompletableFuture<CacheEntry> flight = new CompletableFuture<>();
+        CompletableFuture<CacheEntry> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            listener.getLogger().println("Waiting for concurrent fetch of " + request.getUrl());
+            return existing.whenComplete((fetched, x) -> {
+                if (x != null) {
+                    listener.getLogger()
+                            .println("Concurrent fetch of " + request.getUrl() + " failed: "
+                                    + (x instanceof CompletionException ? x.getCause() : x));
+                } else {
+                    listener.getLogger().println("Concurrent fetch of " + request.getUrl() + " completed");
+                }
+            });
+        }
+        CompletableFuture<CacheEntry> fetch;
+        try {
+            CacheEntry entry = get(key);
+            if (entry == null || entry.expirationDate.isBefore(staleBefore)) {
+                fetch = request.fetchAsync(entry, cachingSeconds, listener)
+                        .thenApply(fetched -> put(key, fetched, request));
+            } else { // filled by a fetch which completed since the caller looked
+                fetch = CompletableFuture.completedFuture(entry);
+            }
+        } catch (RuntimeException x) { // so that the flight is not left in progress
+            fetch = CompletableFuture.failedFuture(x);
+        }
+        fetch.whenComplete((fetched, x) -> {
+            inFlight.remove(key, flight);
+            if (x != null) {
+                flight.completeExceptionally(x instanceof CompletionException ? x.getCause() : x);
+            } else {
+                flight.complete(fetched);
+            }
+        });
+        return flight;
+    }
+
+    /** Like {@link #refresh}, but without waiting. */
+    public void refreshInBackground(ScriptRequest request, long cachingSeconds) {
+        refreshInBackground(request, cachingSeconds, Instant.now());
+    }
+
+    void refreshInBackground(ScriptRequest request, long cachingSeconds, Instant staleBefore) {
+        refreshAsync(request, cachingSeconds, staleBefore, new LogTaskListener(LOGGER, Level.FINE))
+                .whenComplete((entry, x) -> {
+                    if (x != null) {
+                        LOGGER.log(Level.WARNING, "Failed to refresh cached pipeline from " + request.getUrl(), x);
+                    }
+                });
+    }
+
+    /**
+     * Caches {@code entry} under {@code key}.
+     *
+     * @return the entry as cached, sharing the script of any other entry with the same one
+     */
+    public CacheEntry put(String key, CacheEntry entry) {
+        return put(key, entry, null);
+    }
+
+    /**
+     * Like {@link #put(String, CacheEntry)}, remembering the request {@code entry} was fetched with. The entry is
+     * saved to disk under the same lock as removals, so that a removal racing with it is not undone by a late save.
+     */
+    synchronized CacheEntry put(String key, CacheEntry entry, @CheckForNull ScriptRequest request) {
+        CacheEntry cached = putInMemory(key, entry);
+        if (request != null) {
+            requests.put(key, request);
+        }
+        if (disk != null) {
+            disk.save(key, entry);
+        }
+        return cached;
+    }
+
+    private CacheEntry putInMemory(String key, CacheEntry entry) {
+        ScriptBlob blob = scripts.retain(entry.blob);
+        if (blob != entry.blob) {
+            entry = entry.withBlob(blob);
+        }
+        CacheEntry old = entries.put(key, entry);
+        if (old != null) {
+            scripts.release(old.blob);
+        }
+        Iterator<Map.Entry<String, CacheEntry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || scripts.getBytes() > maxBytes) && eldest.hasNext()) {
+            Map.Entry<String, CacheEntry> evicted = eldest.next();
+            scripts.release(evicted.getValue().blob);
+            hits.remove(evicted.getKey());
+            requests.remove(evicted.getKey());
+            eldest.remove();
+            FetchMetrics.cacheEvictions.increment();
+        }
+        return entry;
+    }
+
+    @CheckForNull
+    public synchronized CacheEntry remove(String key) {
+        CacheEntry old = removeFromMemory(key);
+        if (disk != null) {
+            disk.delete(key);
+        }
+        return old;
+    }
+
+    /** Removes the entry for {@code key} only if it is still {@code entry}. */
+    public synchronized boolean remove(String key, CacheEntry entry) {
+        if (entries.get(key) != entry) {
+            return false;
+        }
+        removeFromMemory(key);
+        if (disk != null) {
+            disk.delete(key);
+        }
+        return true;
+    }
+
+    private CacheEntry removeFromMemory(String key) {
+        removals++;
+        CacheEntry old = entries.remove(key);
+        if (old != null) {
+            scripts.release(old.blob);
+            hits.remove(key);
+            requests.remove(key);
+        }
+        return old;
+    }
+
+    /**
+     * Drops every entry which expired before {@code now} from memory, returning how many were
+     * dropped. Entries with validators are kept for a while longer, since revalidating them is cheaper
+     * than a fetch. Entries on disk are kept for {@link DiskCache#RETENTION}.
+     */
+    public int removeExpired(Instant now) {
+        Instant revalidationCutoff = now.minusMillis(REVALIDATION_RETENTION);
+        int removed = 0;
+        synchronized (this) {
+            Iterator<Map.Entry<String, CacheEntry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, CacheEntry> next = it.next();
+                CacheEntry entry = next.getValue();
+                if (entry.expirationDate.isBefore(entry.hasValidators() ? revalidationCutoff : now)) {
+                    scripts.release(entry.blob);
+                    hits.remove(next.getKey());
+                    requests.remove(next.getKey());
+                    it.remove();
+                    removed++;
+                }
+            }
+        }
+        if (disk != null) {
+            disk.deleteExpired(now.minusMillis(DiskCache.RETENTION));
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        removals++;
+        entries.clear();
+        scripts.clear();
+        hits.clear();
+        requests.clear();
+        if (disk != null) {
+            disk.clear();
+        }
+    }
+
+    /**
+     * Matches the keys of pipelines whose URL matches a glob, where {@code *} stands for any text and
+     * {@code ?} for any character, whatever the headers and credentials they were fetched with.
+     */
+    public static Predicate<String> keysMatching(String glob) {
+        Predicate<String> urls = Pattern.compile(CachingConfiguration.createRegexFromGlob(glob)).asMatchPredicate();
+        return key -> urls.test(ScriptRequest.urlOf(key));
+    }
+
+    /** Removes every entry whose key matches, in memory and on disk, returning the keys removed. */
+    public synchronized Set<String> invalidate(Predicate<String> keys) {
+        removals++;
+        Set<String> removed = new HashSet<>();
+        for (String key : new ArrayList<>(entries.keySet())) {
+            if (keys.test(key)) {
+                removeFromMemory(key);
+                removed.add(key);
+            }
+        }
+        if (disk != null) {
+            removed.addAll(disk.deleteMatching(keys));
+        }
+        return removed;
+    }
+
+    /** The requests the entries in memory whose key matches were last fetched with, by key. */
+    synchronized Map<String, ScriptRequest> requestsMatching(Predicate<String> keys) {
+        Map<String, ScriptRequest> matching = new HashMap<>();
+        for (Map.Entry<String, ScriptRequest> request : requests.entrySet()) {
+            if (keys.test(request.getKey())) {
+                matching.put(request.getKey(), request.getValue());
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Fetches each request, unless already cached and fresh. The fetches run concurrently, as far as
+     * the connection pool allows.
+     *
+     * @return the fetches, by request
+     */
+    public Map<ScriptRequest, CompletableFuture<CacheEntry>> warm(
+            Collection<ScriptRequest> requests, long cachingSeconds, TaskListener listener) {
+        Map<ScriptRequest, CompletableFuture<CacheEntry>> fetches = new LinkedHashMap<>();
+        for (ScriptRequest request : requests) {
+            fetches.put(request, refreshAsync(request, cachingSeconds, Instant.now(), listener));
+        }
+        return fetches;
+    }
+
+    /** Counts a build using the entry for {@code key}, as shown by {@link #list}. */
+    public synchronized void recordHit(String key) {
+        if (entries.containsKey(key)) {
+            hits.merge(key, 1L, Long::sum);
+        }
+    }
+
+    /** The entries in memory, least recently used first, without counting as uses of them. */
+    public synchronized List<Info> list() {
+        List<Info> list = new ArrayList<>();
+        for (Map.Entry<String, CacheEntry> entry : entries.entrySet()) {
+            list.add(new Info(entry.getKey(), entry.getValue(), hits.getOrDefault(entry.getKey(), 0L)));
+        }
+        return list;
+    }
+
+    /**
+     * Summary of a cache entry. The key itself is not exported: only its URL and a short id telling
+     * apart entries of the same URL fetched with other headers or credentials.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Info {
+        private final String key;
+        private final CacheEntry entry;
+        private final long hits;
+
+        Info(String key, CacheEntry entry, long hits) {
+            this.key = key;
+            this.entry = entry;
+            this.hits = hits;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        @Exported
+        public String getId() {
+            return idOf(key);
+        }
+
+        @Exported
+        public String getUrl() {
+            return ScriptRequest.urlOf(key);
+        }
+
+        /** Approximate heap used by the script, in bytes, were it not shared. */
+        @Exported
+        public long getSize() {
+            return entry.getSize();
+        }
+
+        /** When the script was last fetched or revalidated, in milliseconds since the epoch. */
+        @Exported
+        public long getFetched() {
+            return entry.fetched.toEpochMilli();
+        }
+
+        /** When the entry expires, in milliseconds since the epoch. */
+        @Exported
+        public long getExpires() {
+            return entry.expirationDate.toEpochMilli();
+        }
+
+        @Exported
+        public long getHits() {
+            return hits;
+        }
+
+        @Exported
+        public String getScriptHash() {
+            return entry.blob.getHash();
+        }
+
+        @Exported
+        public boolean isExpired() {
+            return entry.isExpired();
+        }
+
+        public String getAge() {
+            return Util.getTimeSpanString(System.currentTimeMillis() - getFetched());
+        }
+    }
+
+    /** Short id of a cache key, which can be shown without revealing the key. */
+    static String idOf(String key) {
+        return DiskCache.hash(key).substring(0, 12);
+    }
+
+    /** A cache key for display: its URL and, for keys fingerprinting headers or credentials, its id. */
+    static String describe(String key) {
+        String url = ScriptRequest.urlOf(key);
+        return url.equals(key) ? url : url + " (" + idOf(key) + ")";
+    }
+
+    /** Whether {@code key} is cached in memory, without counting as a use of the entry. */
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Approximate heap used by the cached scripts, counting shared ones once. */
+    public synchronized long getBytes() {
+        return scripts.getBytes();
+    }
+
+    /** Number of distinct cached scripts. */
+    public synchronized int getScriptCount() {
+        return scripts.size();
+    }
+
+    @Extension
+    public static final class Sweeper extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return SWEEP_INTERVAL;
+        }
+
+        @Override
+        protected void doRun() {
+            int removed = CacheEntry.cache.removeExpired(Instant.now());
+            LOGGER.log(Level.FINE, "Removed {0} expired pipelines from cache", removed);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.AbortException;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.security.ACL;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import jenkins.model.Jenkins;
+import jenkins.security.HMACConfidentialKey;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+
+/**
+ * How to fetch a pipeline: its URL, already expanded, and the headers and credentials to send. Kept
+ * apart from any build so that cached pipelines can be refreshed in the background.
+ */
+public final class ScriptRequest {
+
+    /** Largest pipeline accepted, in bytes, so that a wrong URL cannot fill up the controller heap. */
+    static final long MAX_SCRIPT_SIZE =
+            Long.getLong(ScriptRequest.class.getName() + ".MAX_SCRIPT_SIZE", 10L * 1024 * 1024);
+
+    /** Separates the URL from the fingerprint of headers and credentials in cache keys. */
+    static final String KEY_SEPARATOR = " #";
+
+    /**
+     * Key of the fingerprint in cache keys, specific to this Jenkins, so that keys, which are shown to
+     * administrators and stored on disk, do not allow guessing passwords or header values offline.
+     */
+    private static final HMACConfidentialKey FINGERPRINT = new HMACConfidentialKey(ScriptRequest.class, "fingerprint");
+
+    private final String url;
+
+    @CheckForNull
+    private final String acceptHeader;
+
+    @CheckForNull
+    private final String keyHeader;
+
+    @CheckForNull
+    private final String valueHeader;
+
+    @CheckForNull
+    private final String credentialsId;
+
+    private final int retryCount;
+
+    /** Other URLs serving the same pipeline, tried when {@link #url} fails or is slower. */
+    private final List<String> mirrors;
+
+    /** Whether to also ask the next mirror when one is slower than usual to respond. */
+    private final boolean hedge;
+
+    /** Path of the pipeline inside the archive served, when a {@link PipelineBundle} is served. */
+    @CheckForNull
+    private final String bundleEntry;
+
+    /** Computed on first use, as it may look credentials up. */
+    @CheckForNull
+    private volatile String cacheKey;
+
+    public ScriptRequest(
+            String url,
+            @CheckForNull String acceptHeader,
+            @CheckForNull String keyHeader,
+            @CheckForNull String valueHeader,
+            @CheckForNull String credentialsId,
+            int retryCount) {
+        this(
+                url,
+                acceptHeader,
+                keyHeader,
+                valueHeader,
+                credentialsId,
+                retryCount,
+                Collections.emptyList(),
+                false,
+                null);
+    }
+
+    private ScriptRequest(
+            String url,
+            @CheckForNull String acceptHeader,
+            @CheckForNull String keyHeader,
+            @CheckForNull String valueHeader,
+            @CheckForNull String credentialsId,
+            int retryCount,
+            List<String> mirrors,
+            boolean hedge,
+            @CheckForNull String bundleEntry) {
+        this.url = url;
+        this.acceptHeader = Util.fixEmpty(acceptHeader);
+        this.keyHeader = Util.fixEmpty(keyHeader);
+        this.valueHeader = Util.fixEmpty(valueHeader);
+        this.credentialsId = Util.fixEmpty(credentialsId);
+        this.retryCount = retryCount;
+        this.mirrors = List.copyOf(mirrors);
+        this.hedge = hedge;
+        this.bundleEntry = Util.fixEmpty(bundleEntry);
+    }
+
+    /**
+     * The same request, which may also be served by {@code mirrors}. They are expected to serve the
+     * same pipeline, so the cache key does not depend on them.
+     *
+     * @param hedge whether to also ask the next mirror when the first is slower than usual to respond,
+     *     using whichever responds first
+     */
+    public ScriptRequest withMirrors(List<String> mirrors, boolean hedge) {
+        return new ScriptRequest(
+                url, acceptHeader, keyHeader, valueHeader, credentialsId, retryCount, mirrors, hedge, bundleEntry);
+    }
+
+    /**
+     * The same request, serving a zip or tar archive of which {@code bundleEntry} is the pipeline.
+     * The archive is extracted once for all builds, see {@link PipelineBundle}.
+     */
+    public ScriptRequest withBundleEntry(@CheckForNull String bundleEntry) {
+        return new ScriptRequest(
+                url, acceptHeader, keyHeader, valueHeader, credentialsId, retryCount, mirrors, hedge, bundleEntry);
+    }
+
+    @CheckForNull
+    public String getBundleEntry() {
+        return bundleEntry;
+    }
+
+    public List<String> getMirrors() {
+        return mirrors;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Key of the cache entry for this request, which is also used to share a fetch between concurrent
+     * builds: the URL, followed by a fingerprint of the headers and credentials sent and of the bundle
+     * entry, if any, so that requests which may get different pipelines from the same URL neither share
+     * nor clobber an entry.
+     * The fingerprint covers the username and password, not only the credentials ID, so that changing
+     * them does not reuse pipelines fetched with the old ones. It is an HMAC keyed by a secret of this
+     * Jenkins, as the values it covers are secrets too.
+     */
+    public String getCacheKey() {
+        String key = cacheKey;
+        if (key == null) {
+            key = cacheKey = fingerprint();
+        }
+        return key;
+    }
+
+    private String fingerprint() {
+        List<String> identity = new ArrayList<>();
+        if (acceptHeader != null) {
+            identity.add("accept:" + acceptHeader.trim());
+        }
+        if (keyHeader != null && valueHeader != null) {
+            identity.add(keyHeader.trim().toLowerCase(Locale.ROOT) + ":" + valueHeader.trim());
+        }
+        if (credentialsId != null) {
+            UsernamePasswordCredentials credentials = lookupCredentials();
+            identity.add("credentials:" + credentialsId
+                    + (credentials != null
+                            ? ":" + credentials.getUsername() + ":"
+                                    + credentials.getPassword().getPlainText()
+                            : ""));
+        }
+        if (bundleEntry != null) {
+            identity.add("bundle:" + bundleEntry);
+        }
+        if (identity.isEmpty()) {
+            return url;
+        }
+        return url + KEY_SEPARATOR + FINGERPRINT.mac(String.join("\n", identity));
+    }
+
+    /** The URL a cache key was made from. */
+    static String urlOf(String key) {
+        int separator = key.indexOf(KEY_SEPARATOR);
+        return separator == -1 ? key : key.substring(0, separator);
+    }
+
+    /** Matches the cache keys of requests for a URL, whatever their headers and credentials. */
+    static Predicate<String> keysFor(String url) {
+        return key -> key.equals(url) || key.startsWith(url + KEY_SEPARATOR);
+    }
+
+    @CheckForNull
+    public UsernamePasswordCredentials lookupCredentials() {
+        if (credentialsId == null) {
+            return null;
+        }
+        return CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(
+                        UsernamePasswordCredentials.class, Jenkins.get(), ACL.SYSTEM, Collections.emptyList()),
+                CredentialsMatchers.withId(credentialsId));
+    }
+
+    private SimpleHttpRequest newRequest(String url, @CheckForNull CacheEntry previous) {
+        SimpleRequestBuilder builder = SimpleRequestBuilder.get(url);
+        if (acceptHeader != null) {
+            builder.setHeader(HttpHeaders.ACCEPT, acceptHeader);
+        }
+        if (keyHeader != null && valueHeader != null) {
+            builder.setHeader(keyHeader, valueHeader);
+        }
+        UsernamePasswordCredentials credentials = lookupCredentials();
+        if (credentials != null) {
+            String encoded = Base64.getEncoder()
+                    .encodeToString((credentials.getUsername() + ":" + credentials.getPassword())
+                            .getBytes(StandardCharsets.UTF_8));
+            builder.setHeader(HttpHeaders.AUTHORIZATION, "Basic " + encoded);
+        }
+        if (previous != null && previous.etag != null) {
+            builder.setHeader(HttpHeaders.IF_NONE_MATCH, previous.etag);
+        }
+        if (previous != null && previous.lastModified != null) {
+            builder.setHeader(HttpHeaders.IF_MODIFIED_SINCE, previous.lastModified);
+        }
+        return builder.build();
+    }
+
+    private RobustHTTPClient newClient() {
+        RobustHTTPClient client = new RobustHTTPClient();
+        client.setStopAfterAttemptNumber(retryCount + 1);
+        client.setWaitMultiplier(1, TimeUnit.SECONDS);
+        client.setMaxResponseSize(MAX_SCRIPT_SIZE);
+        return client;
+    }
+
+    /**
+     * Sends the request to the mirrors, from the most promising one on, until one responds, and
+     * when hedging, to the next one too while the first is slower than usual.
+     */
+    private CompletableFuture<SimpleHttpResponse> connectAsync(
+            @CheckForNull CacheEntry previous, TaskListener listener) {
+        List<String> urls = new ArrayList<>();
+        urls.add(url);
+        urls.addAll(mirrors);
+        return connectAsync(MirrorSelector.order(urls), previous, listener);
+    }
+
+    private CompletableFuture<SimpleHttpResponse> connectAsync(
+            List<String> urls, @CheckForNull CacheEntry previous, TaskListener listener) {
+        String first = urls.get(0);
+        if (!first.equals(url)) {
+            listener.getLogger().println("Fetching pipeline from mirror " + first);
+        }
+        CompletableFuture<SimpleHttpResponse> attempt = newClient()
+                .connectAsync(
+                        "get pipeline", "get pipeline from " + first, () -> newRequest(first, previous), listener);
+        if (urls.size() == 1) {
+            return attempt;
+        }
+        List<String> others = urls.subList(1, urls.size());
+        CompletableFuture<SimpleHttpResponse> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicBoolean next = new AtomicBoolean();
+        BiConsumer<SimpleHttpResponse, Throwable> settle = (response, x) -> {
+            if (x == null) {
+                result.complete(response);
+            } else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(x instanceof CompletionException ? x.getCause() : x);
+            }
+        };
+        Runnable tryNext = () -> {
+            if (!result.isDone() && next.compareAndSet(false, true)) {
+                pending.incrementAndGet();
+                connectAsync(others, previous, listener).whenComplete(settle);
+            }
+        };
+        attempt.whenComplete((response, x) -> {
+            if (x != null && !result.isDone() && !next.get()) {
+                listener.getLogger().println("Failed to get pipeline from " + first + ", trying another mirror");
+            }
+            if (x != null) {
+                tryNext.run();
+            }
+            settle.accept(response, x);
+        });
+        if (hedge) {
+            long delay = MirrorSelector.hedgeDelay(first);
+            RobustHTTPClient.scheduler()
+                    .schedule(
+                            () -> {
+                                if (!result.isDone()) {
+                                    listener.getLogger()
+                                            .println("No response from " + first + " after " + delay
+                                                    + "ms, also trying another mirror");
+                                    tryNext.run();
+                                }
+                            },
+                            delay,
+                            TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    /** Fetches the pipeline, bypassing the cache. */
+    public CompletableFuture<String> fetchAsync(TaskListener listener) {
+        if (bundleEntry != null) {
+            return fetchAsync(null, 0, listener).thenApply(CacheEntry::getScript);
+        }
+        return connectAsync(null, listener).thenApply(RobustHTTPClient::getBodyText);
+    }
+
+    /**
+     * Fetches the pipeline into a new cache entry. When a previous entry has validators, the request
+     * is made conditional and a {@code 304 Not Modified} response only extends that entry.
+     */
+    public CompletableFuture<CacheEntry> fetchAsync(
+            @CheckForNull CacheEntry previous, long cachingSeconds, TaskListener listener) {
+        return connectAsync(previous, listener).thenApply(response -> {
+            Instant expirationDate = Instant.now().plusSeconds(cachingSeconds);
+            if (response.getCode() == HttpStatus.SC_NOT_MODIFIED) {
+                if (previous == null) {
+                    throw new CompletionException(new AbortException("Unexpected 304 response from " + url));
+                }
+                listener.getLogger().println("Pipeline not modified. Extending cache");
+                return previous.withExpirationDate(expirationDate);
+            }
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            if (bundleEntry == null) {
+                return new CacheEntry(
+                        expirationDate,
+                        RobustHTTPClient.getBodyText(response),
+                        etag != null ? etag.getValue() : null,
+                        strongLastModified(response));
+            }
+            try {
+                byte[] body = response.getBodyBytes();
+                String bundle = PipelineBundle.extract(body != null ? body : new byte[0]);
+                listener.getLogger().println("Running " + bundleEntry + " from pipeline bundle " + bundle);
+                return new CacheEntry(
+                                expirationDate,
+                                PipelineBundle.read(bundle, bundleEntry),
+                                etag != null ? etag.getValue() : null,
+                                strongLastModified(response))
+                        .withBundle(bundle);
+            } catch (IOException x) {
+                throw new CompletionException(x);
+            }
+        });
+    }
+
+    /**
+     * The {@code Last-Modified} header of a response, if it can be used as a validator. As per RFC
+     * 9110, section 8.8.2.2, it cannot when the resource was modified less than a second before the
+     * response was generated, since a later change in the same second would go unnoticed.
+     */
+    @CheckForNull
+    private static String strongLastModified(HttpResponse response) {
+        Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        if (lastModified == null) {
+            return null;
+        }
+        Instant modified = DateUtils.parseStandardDate(lastModified.getValue());
+        if (modified == null) {
+            return null;
+        }
+        Header dateHeader = response.getFirstHeader(HttpHeaders.DATE);
+        Instant date = dateHeader != null ? DateUtils.parseStandardDate(dateHeader.getValue()) : null;
+        if (date == null) {
+            date = Instant.now();
+        }
+        return date.minusSeconds(1).isBefore(modified) ? null : lastModified.getValue();
+    }
+}
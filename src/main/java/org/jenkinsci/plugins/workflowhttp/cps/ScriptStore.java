@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scripts held by a {@link ScriptCache}, by hash, each kept once however many entries refer to it.
+ * A script is dropped once the last entry referring to it is. Not thread-safe: guarded by the
+ * cache.
+ */
+final class ScriptStore {
+
+    private final Map<String, Ref> blobs = new HashMap<>();
+    private long bytes;
+
+    private static final class Ref {
+        final ScriptBlob blob;
+        int count;
+
+        Ref(ScriptBlob blob) {
+            this.blob = blob;
+        }
+    }
+
+    /** Adds a reference to a script, returning the blob already held for an identical one if any. */
+    ScriptBlob retain(ScriptBlob blob) {
+        Ref ref = blobs.get(blob.getHash());
+        if (ref == null) {
+            ref = new Ref(blob);
+            blobs.put(blob.getHash(), ref);
+            bytes += blob.getSize();
+        }
+        ref.count++;
+        return ref.blob;
+    }
+
+    /** Removes a reference added by {@link #retain}. */
+    void release(ScriptBlob blob) {
+        Ref ref = blobs.get(blob.getHash());
+        if (ref != null && --ref.count == 0) {
+            blobs.remove(blob.getHash());
+            bytes -= ref.blob.getSize();
+        }
+    }
+
+    void clear() {
+        blobs.clear();
+        bytes = 0;
+    }
+
+    /** Number of distinct scripts. */
+    int size() {
+        return blobs.size();
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,53 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads system properties which {@link Integer#getInteger} and {@link Long#getLong} do not cover.
+ * Like them, an invalid value falls back to the default, with a warning, rather than failing every
+ * pipeline fetch.
+ */
+final class SystemProperty {
+
+    private static final Logger LOGGER = Logger.getLogger(SystemProperty.class.getName());
+
+    private SystemProperty() {}
+
+    /** A number between {@code min} and {@code max}, inclusive. */
+    static double getDouble(String name, double defaultValue, double min, double max) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            double parsed = Double.parseDouble(value.trim());
+            if (parsed >= min && parsed <= max) {
+                return parsed;
+            }
+        } catch (NumberFormatException x) {
+            // warned below
+        }
+        LOGGER.log(Level.WARNING, "Ignoring {0}={1}: expected a number between {2} and {3}, using {4}", new Object[] {
+            name, value, min, max, defaultValue
+        });
+        return defaultValue;
+    }
+
+    static <E extends Enum<E>> E getEnum(String name, E defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException x) {
+            LOGGER.log(Level.WARNING, "Ignoring {0}={1}: expected one of {2}, using {3}", new Object[] {
+                name, value, Arrays.toString(defaultValue.getDeclaringClass().getEnumConstants()), defaultValue
+            });
+            return defaultValue;
+        }
+    }
+}
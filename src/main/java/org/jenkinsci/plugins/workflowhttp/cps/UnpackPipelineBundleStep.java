@@ -0,0 +1,100 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.Set;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousNonBlockingStepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Copies the files of the {@link PipelineBundle} the pipeline of the build was read from into the
+ * workspace, as {@code load} only reads scripts from there.
+ */
+public class UnpackPipelineBundleStep extends Step {
+
+    @CheckForNull
+    private String dir;
+
+    @DataBoundConstructor
+    public UnpackPipelineBundleStep() {}
+
+    @CheckForNull
+    public String getDir() {
+        return dir;
+    }
+
+    @DataBoundSetter
+    public void setDir(String dir) {
+        this.dir = Util.fixEmptyAndTrim(dir);
+    }
+
+    @Override
+    public StepExecution start(StepContext context) {
+        return new Execution(context, dir);
+    }
+
+    private static final class Execution extends SynchronousNonBlockingStepExecution<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        @CheckForNull
+        private final String dir;
+
+        Execution(StepContext context, @CheckForNull String dir) {
+            super(context);
+            this.dir = dir;
+        }
+
+        @Override
+        protected Void run() throws Exception {
+            Run<?, ?> run = getContext().get(Run.class);
+            PipelineBundleAction action = run.getAction(PipelineBundleAction.class);
+            if (action == null) {
+                throw new AbortException("The pipeline of " + run + " was not read from a bundle");
+            }
+            if (!PipelineBundle.exists(action.getHash())) {
+                throw new AbortException("Pipeline bundle " + action.getHash() + " is no longer available");
+            }
+            PipelineBundle.touch(action.getHash());
+            FilePath workspace = getContext().get(FilePath.class);
+            FilePath target = dir != null ? workspace.child(dir) : workspace;
+            int files = new FilePath(PipelineBundle.directory(action.getHash()).toFile()).copyRecursiveTo(target);
+            getContext()
+                    .get(TaskListener.class)
+                    .getLogger()
+                    .println("Copied " + files + " files of the pipeline bundle to " + target.getRemote());
+            return null;
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public String getFunctionName() {
+            return "unpackPipelineBundle";
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Copy the files of the pipeline bundle into the workspace";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Set.of(Run.class, FilePath.class, TaskListener.class);
+        }
+    }
+}
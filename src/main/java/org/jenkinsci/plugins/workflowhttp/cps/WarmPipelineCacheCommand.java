@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.util.StreamTaskListener;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Fetches pipelines into the cache ahead of builds, with the headers and credentials of each job
+ * fetching them, or without for URLs no job fetches.
+ */
+@Extension
+public final class WarmPipelineCacheCommand extends CLICommand {
+
+    @Argument(metaVar = "URL", usage = "URLs of the pipelines to fetch", required = true)
+    public List<String> urls;
+
+    @Option(name = "-minutes", usage = "How long to cache the pipelines for")
+    public int minutes = PipelineCacheManagementLink.DEFAULT_WARM_MINUTES;
+
+    @Override
+    public String getShortDescription() {
+        return "Fetches pipelines into the cache, unless already cached, with the headers and credentials of the jobs"
+                + " using them.";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        int failed = 0;
+        List<ScriptRequest> requests = PipelinePrefetcher.requestsFor(urls);
+        Map<ScriptRequest, CompletableFuture<CacheEntry>> fetches = CacheEntry.cache.warm(
+                requests, TimeUnit.MINUTES.toSeconds(minutes), new StreamTaskListener(stderr, getClientCharset()));
+        for (Map.Entry<ScriptRequest, CompletableFuture<CacheEntry>> fetch : fetches.entrySet()) {
+            try {
+                RobustHTTPClient.await(fetch.getValue());
+                stdout.println("Cached " + fetch.getKey().getUrl());
+            } catch (IOException | RuntimeException x) {
+                stderr.println("Failed to cache " + fetch.getKey().getUrl() + ": " + x);
+                failed++;
+            }
+        }
+        return failed == 0 ? 0 : 1;
+    }
+}
@@ -0,0 +1,41 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import java.util.concurrent.TimeUnit;
+import jenkins.benchmark.jmh.BenchmarkFinder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the classes annotated with {@link jenkins.benchmark.jmh.JmhBenchmark}, writing the results
+ * to {@code jmh-report.json}. Skipped by a normal build, which only compiles the benchmarks: run
+ * {@code mvn -P benchmark test}. Benchmarks can be narrowed with {@code -Djmh.include=<regex>}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class BenchmarkRunner {
+
+    @Test
+    void runJmhBenchmarks() throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .mode(Mode.AverageTime)
+                .timeUnit(TimeUnit.MICROSECONDS)
+                .warmupIterations(Integer.getInteger("jmh.warmupIterations", 3))
+                .measurementIterations(Integer.getInteger("jmh.measurementIterations", 5))
+                .forks(Integer.getInteger("jmh.forks", 1))
+                .shouldFailOnError(true)
+                .shouldDoGC(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-report.json");
+        String include = System.getProperty("jmh.include");
+        if (include != null) {
+            options.include(include);
+        } else {
+            new BenchmarkFinder(getClass()).findBenchmarks(options);
+        }
+        new Runner(options.build()).run();
+    }
+}
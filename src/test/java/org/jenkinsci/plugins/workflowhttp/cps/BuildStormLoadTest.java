@@ -0,0 +1,191 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.TaskListener;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+/**
+ * Starts many builds at once against a local stand-in for the server hosting pipelines, and reports
+ * how many requests reached it, how long builds took to get their pipeline and how many threads
+ * that took. Skipped unless asked for, for example:
+ *
+ * <pre>
+ * mvn test -Dtest=BuildStormLoadTest -DloadTest=true -DloadTest.builds=500 -DloadTest.urls=20 \
+ *     -DloadTest.latencyMillis=200 -DloadTest.errorRate=0.1 -DloadTest.payloadBytes=65536
+ * </pre>
+ *
+ * <p>{@code -DloadTest.cachingMinutes=0} turns the cache off; {@code -DloadTest.retryCount} sets
+ * the retries of each fetch.
+ */
+@WithJenkins
+@EnabledIfSystemProperty(named = "loadTest", matches = "true")
+class BuildStormLoadTest {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildStormLoadTest.class.getName());
+
+    private static final String PREFIX = "loadTest.";
+
+    private static final int BUILDS = Integer.getInteger(PREFIX + "builds", 200);
+    private static final int URLS = Integer.getInteger(PREFIX + "urls", 10);
+    private static final int LATENCY_MILLIS = Integer.getInteger(PREFIX + "latencyMillis", 100);
+    private static final double ERROR_RATE = Double.parseDouble(System.getProperty(PREFIX + "errorRate", "0"));
+    private static final int PAYLOAD_BYTES = Integer.getInteger(PREFIX + "payloadBytes", 16 * 1024);
+    private static final int CACHING_MINUTES = Integer.getInteger(PREFIX + "cachingMinutes", 60);
+    private static final int RETRY_COUNT = Integer.getInteger(PREFIX + "retryCount", 2);
+
+    @Test
+    void buildStorm(JenkinsRule r) throws Exception {
+        byte[] script = script(PAYLOAD_BYTES);
+        ConcurrentHashMap<String, LongAdder> requests = new ConcurrentHashMap<>();
+        AtomicInteger errors = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            requests.computeIfAbsent(exchange.getRequestURI().getPath(), p -> new LongAdder())
+                    .increment();
+            try {
+                Thread.sleep(LATENCY_MILLIS);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+            if (ThreadLocalRandom.current().nextDouble() < ERROR_RATE) {
+                errors.incrementAndGet();
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                exchange.sendResponseHeaders(200, script.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(script);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        String base = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + server.getAddress().getPort() + "/";
+
+        List<CpsHttpFlowDefinition> definitions = new ArrayList<>();
+        for (int i = 0; i < URLS; i++) {
+            CpsHttpFlowDefinition definition = new CpsHttpFlowDefinition(base + i + "/Jenkinsfile");
+            definition.setRetryCount(RETRY_COUNT);
+            if (CACHING_MINUTES > 0) {
+                definition.setCachingConfiguration(new CachingConfiguration(CACHING_MINUTES, ""));
+            }
+            definitions.add(definition);
+        }
+        WorkflowJob job = r.jenkins.createProject(WorkflowJob.class, "p");
+        job.setDefinition(new CpsHttpFlowDefinition(base + "setup/Jenkinsfile"));
+        // Any run will do as the owner of the executions created below, whether its fetch failed or not
+        WorkflowRun run = job.scheduleBuild2(0).get();
+        requests.clear();
+        errors.set(0);
+        CacheEntry.cache.clear();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int threadsBefore = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        ExecutorService builds = Executors.newFixedThreadPool(BUILDS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> latencies = new ArrayList<>();
+        for (int i = 0; i < BUILDS; i++) {
+            CpsHttpFlowDefinition definition = definitions.get(i % URLS);
+            latencies.add(builds.submit(() -> {
+                start.await();
+                long began = System.nanoTime();
+                definition.create(run.asFlowExecutionOwner(), TaskListener.NULL, Collections.emptyList());
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began);
+            }));
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        long[] millis = new long[BUILDS];
+        int failed = 0;
+        for (int i = 0; i < BUILDS; i++) {
+            try {
+                millis[i] = latencies.get(i).get();
+            } catch (ExecutionException x) {
+                millis[i] = -1;
+                failed++;
+            }
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - began);
+        builds.shutdown();
+        server.stop(0);
+
+        long[] succeeded = Arrays.stream(millis).filter(m -> m >= 0).sorted().toArray();
+        long origin = requests.values().stream().mapToLong(LongAdder::sum).sum();
+        String report = String.format(
+                "Build storm: %d builds over %d URLs, server latency %d ms, error rate %.2f, payload %d bytes, "
+                        + "caching %d min, %d retries%n"
+                        + "  origin requests: %d (%d answered with errors), %.2f per build%n"
+                        + "  builds failed to get their pipeline: %d%n"
+                        + "  pipeline load: p50 %d ms, p99 %d ms, max %d ms; all builds in %d ms%n"
+                        + "  threads: %d before, peak %d (including %d build threads)",
+                BUILDS,
+                URLS,
+                LATENCY_MILLIS,
+                ERROR_RATE,
+                PAYLOAD_BYTES,
+                CACHING_MINUTES,
+                RETRY_COUNT,
+                origin,
+                errors.get(),
+                (double) origin / BUILDS,
+                failed,
+                percentile(succeeded, 0.5),
+                percentile(succeeded, 0.99),
+                percentile(succeeded, 1),
+                elapsed,
+                threadsBefore,
+                threads.getPeakThreadCount(),
+                BUILDS);
+        LOGGER.info(report);
+        if (ERROR_RATE == 0) {
+            assertEquals(0, failed, report);
+        }
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /** A pipeline of about {@code size} bytes. */
+    private static byte[] script(int size) {
+        StringBuilder script = new StringBuilder("echo 'Hello from HTTP'\n");
+        while (script.length() < size) {
+            script.append("// padding\n");
+        }
+        return script.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
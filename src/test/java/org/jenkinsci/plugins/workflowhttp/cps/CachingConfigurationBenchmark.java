@@ -0,0 +1,34 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import hudson.EnvVars;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Cost of deciding whether a build may use the cache, paid on every build start. */
+@JmhBenchmark
+public class CachingConfigurationBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Rules {
+        final CachingConfiguration configuration = new CachingConfiguration(
+                60,
+                "BRANCH_NAME=release/*,hotfix/* GIT_BRANCH=origin/feature-* "
+                        + "JOB_NAME!=infra/*&NODE_NAME=linux-* REPLAY=true");
+        final EnvVars excluded = new EnvVars(
+                "BRANCH_NAME", "main", "JOB_NAME", "team/app", "NODE_NAME", "linux-42", "BUILD_NUMBER", "12");
+        final EnvVars included = new EnvVars(
+                "BRANCH_NAME", "main", "JOB_NAME", "infra/app", "NODE_NAME", "linux-42", "BUILD_NUMBER", "12");
+    }
+
+    @Benchmark
+    public boolean excluded(Rules rules) {
+        return rules.configuration.isExcluded(rules.excluded);
+    }
+
+    @Benchmark
+    public boolean included(Rules rules) {
+        return rules.configuration.isExcluded(rules.included);
+    }
+}
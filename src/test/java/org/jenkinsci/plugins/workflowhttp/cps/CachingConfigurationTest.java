@@ -4,6 +4,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import hudson.EnvVars;
 import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -27,7 +28,23 @@ class CachingConfigurationTest {
                 Arguments.of("VAR=*n*", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), false),
                 Arguments.of("VAR=test VAR=*n* ", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), true),
                 Arguments.of(" VAR=*n*   VAR=test ", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), true),
-                Arguments.of("bad ", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), false));
+                Arguments.of("bad ", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), false),
+                Arguments.of("VAR=te.t", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), false),
+                Arguments.of("VAR=a*,t*", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), true),
+                Arguments.of("VAR=a*,b*", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), false),
+                Arguments.of("VAR!=t*", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), false),
+                Arguments.of("VAR!=a*", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), true),
+                Arguments.of("OTHER!=a*", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), true),
+                Arguments.of("VAR=t*&OTHER=x", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), false),
+                Arguments.of(
+                        "VAR=t*&OTHER=x",
+                        getEnvVars(new String[] {"VAR", "OTHER"}, new String[] {"test", "x"}),
+                        true),
+                Arguments.of(
+                        "VAR=t*&OTHER!=x",
+                        getEnvVars(new String[] {"VAR", "OTHER"}, new String[] {"test", "x"}),
+                        false),
+                Arguments.of("VAR=t*&bad", getEnvVars(new String[] {"VAR"}, new String[] {"test"}), false));
     }
 
     @ParameterizedTest
@@ -35,4 +52,11 @@ class CachingConfigurationTest {
     void testIsExcluded(String excludedValues, EnvVars envVars, boolean isExcluded) {
         assertEquals(isExcluded, new CachingConfiguration(0, excludedValues).isExcluded(envVars));
     }
+
+    @Test
+    void testExcludedCasesStringKeepsOnlyValidRules() {
+        assertEquals(
+                "VAR=test A=b&C!=d*",
+                new CachingConfiguration(0, " VAR=test bad A=b&C!=d* =x ").getExcludedCasesString());
+    }
 }
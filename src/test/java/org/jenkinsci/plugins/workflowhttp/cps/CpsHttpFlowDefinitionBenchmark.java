@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.TaskListener;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.jenkinsci.plugins.workflow.flow.FlowExecution;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Time {@link CpsHttpFlowDefinition#create} takes to get the pipeline of a build, with the cache,
+ * and without it, fetching from an in-process server each time.
+ */
+@JmhBenchmark
+@Threads(4)
+public class CpsHttpFlowDefinitionBenchmark {
+
+    public static class Builds extends JmhBenchmarkState {
+        HttpServer server;
+        CpsHttpFlowDefinition cached;
+        CpsHttpFlowDefinition uncached;
+        WorkflowRun run;
+
+        @Override
+        public void setup() throws Exception {
+            byte[] script = "echo 'Hello from HTTP'\n".repeat(200).getBytes(StandardCharsets.UTF_8);
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.createContext("/Jenkinsfile", exchange -> {
+                exchange.sendResponseHeaders(200, script.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(script);
+                }
+            });
+            server.start();
+            String url = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                    + server.getAddress().getPort() + "/Jenkinsfile";
+            cached = new CpsHttpFlowDefinition(url);
+            cached.setCachingConfiguration(new CachingConfiguration(60, ""));
+            uncached = new CpsHttpFlowDefinition(url);
+
+            WorkflowJob job = getJenkins().createProject(WorkflowJob.class, "p");
+            job.setDefinition(uncached);
+            run = job.scheduleBuild2(0).get();
+        }
+
+        @Override
+        public void tearDown() {
+            server.stop(0);
+        }
+    }
+
+    @Benchmark
+    public FlowExecution createCached(Builds builds) throws Exception {
+        return builds.cached.create(builds.run.asFlowExecutionOwner(), TaskListener.NULL, Collections.emptyList());
+    }
+
+    @Benchmark
+    public FlowExecution createUncached(Builds builds) throws Exception {
+        return builds.uncached.create(builds.run.asFlowExecutionOwner(), TaskListener.NULL, Collections.emptyList());
+    }
+}
@@ -25,14 +25,34 @@
 package org.jenkinsci.plugins.workflowhttp.cps;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.sun.net.httpserver.HttpServer;
+import hudson.Util;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParametersDefinitionProperty;
 import hudson.model.Result;
 import hudson.model.StringParameterDefinition;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
@@ -237,10 +257,181 @@ class CpsHttpFlowDefinitionTest {
         p.setDefinition(def);
         b = r.buildAndAssertSuccess(p);
         r.assertLogContains("Fetching pipeline from " + url, b);
-        r.assertLogContains("Cache is expired. Clearing", b);
+        r.assertLogContains("Cache is expired", b);
         r.assertLogContains("Hello from HTTP 2", b);
     }
 
+    @Test
+    void testRevalidateExpiredCacheWithETag(JenkinsRule r) throws Exception {
+        AtomicInteger fullResponses = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/Jenkinsfile", exchange -> {
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                fullResponses.incrementAndGet();
+                byte[] body = "echo 'Hello from HTTP'".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/Jenkinsfile";
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+            CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(url);
+            def.setRetryCount(3);
+            def.setCachingConfiguration(new CachingConfiguration(0, ""));
+            p.setDefinition(def);
+
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("Cache miss. Actually fetching from HTTP", b);
+            r.assertLogContains("Hello from HTTP", b);
+
+            b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("Cache is expired. Revalidating", b);
+            r.assertLogContains("Pipeline not modified. Extending cache", b);
+            r.assertLogContains("Hello from HTTP", b);
+            assertEquals(1, fullResponses.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testUseExpiredCacheIfRefreshFails(JenkinsRule r) throws Exception {
+        AtomicBoolean failing = new AtomicBoolean();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/Jenkinsfile", exchange -> {
+            if (failing.get()) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                byte[] body = "echo 'Hello from HTTP'".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/Jenkinsfile";
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+            CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(url);
+            CachingConfiguration cachingConfiguration = new CachingConfiguration(0, "");
+            cachingConfiguration.setStaleIfError(true);
+            def.setCachingConfiguration(cachingConfiguration);
+            p.setDefinition(def);
+            r.buildAndAssertSuccess(p);
+
+            failing.set(true);
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("Cache is expired. Refreshing", b);
+            r.assertLogContains("Failed to refresh pipeline, using expired copy from cache", b);
+            r.assertLogContains("Hello from HTTP", b);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testUseExpiredCacheWhileRevalidating(JenkinsRule r) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/Jenkinsfile", exchange -> {
+            try {
+                if (requests.incrementAndGet() > 1) {
+                    release.await(30, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = ("echo 'Version " + requests.get() + "'").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/Jenkinsfile";
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+            CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(url);
+            CachingConfiguration cachingConfiguration = new CachingConfiguration(0, "");
+            cachingConfiguration.setStaleWhileRevalidate(true);
+            def.setCachingConfiguration(cachingConfiguration);
+            p.setDefinition(def);
+            r.assertLogContains("Version 1", r.buildAndAssertSuccess(p));
+
+            // the refresh is held by the server until the build is over, so the build did not wait for it
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("Cache is expired. Using it while refreshing in the background", b);
+            r.assertLogContains("Version 1", b);
+            release.countDown();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!CacheEntry.cache.get(url).getScript().equals("echo 'Version 2'")) {
+                assertTrue(System.nanoTime() < deadline, "cache not refreshed in the background");
+                Thread.sleep(100);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testDecodeScriptWithResponseCharset(JenkinsRule r) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/Jenkinsfile", exchange -> {
+            byte[] body = "echo 'Hello from caf\u00e9'".getBytes(StandardCharsets.ISO_8859_1);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=ISO-8859-1");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/Jenkinsfile";
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+            CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(url);
+            def.setCachingConfiguration(null);
+            p.setDefinition(def);
+            r.assertLogContains("Hello from caf\u00e9", r.buildAndAssertSuccess(p));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testFetchGzippedScript(JenkinsRule r) throws Exception {
+        AtomicReference<String> acceptEncoding = new AtomicReference<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/Jenkinsfile", exchange -> {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (OutputStream gzip = new GZIPOutputStream(body)) {
+                gzip.write("echo 'Hello from gzip'".getBytes(StandardCharsets.UTF_8));
+            }
+            acceptEncoding.set(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(200, body.size());
+            exchange.getResponseBody().write(body.toByteArray());
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/Jenkinsfile";
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+            CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(url);
+            def.setCachingConfiguration(null);
+            p.setDefinition(def);
+            r.assertLogContains("Hello from gzip", r.buildAndAssertSuccess(p));
+            assertEquals("gzip", acceptEncoding.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
     @Test
     void testRunJenkinsHomePageAsPipeline(JenkinsRule r) throws Exception {
         WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
@@ -271,4 +462,215 @@ class CpsHttpFlowDefinitionTest {
         WorkflowRun b = r.assertBuildStatus(Result.FAILURE, p.scheduleBuild2(0));
         assertEquals(3, StringUtils.countMatches(b.getLog(), "Retrying get pipeline"));
     }
+
+    @Test
+    void testCacheSeparatesRequestsWithDifferentHeaders(JenkinsRule r) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/Jenkinsfile", exchange -> {
+            requests.incrementAndGet();
+            String team = exchange.getRequestHeaders().getFirst("X-Team");
+            byte[] body = ("echo 'Hello " + team + "'").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/Jenkinsfile";
+            WorkflowJob a = r.jenkins.createProject(WorkflowJob.class, "a");
+            WorkflowJob b = r.jenkins.createProject(WorkflowJob.class, "b");
+            for (WorkflowJob p : new WorkflowJob[] {a, b}) {
+                CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(url);
+                def.setSetKeyHeader("X-Team");
+                def.setSetValueHeader(p.getName());
+                def.setCachingConfiguration(new CachingConfiguration(60, ""));
+                p.setDefinition(def);
+            }
+
+            r.assertLogContains("Hello a", r.buildAndAssertSuccess(a));
+            r.assertLogContains("Hello b", r.buildAndAssertSuccess(b));
+            WorkflowRun run = r.buildAndAssertSuccess(a);
+            r.assertLogContains("Fetching from cache", run);
+            r.assertLogContains("Hello a", run);
+            r.assertLogContains("Hello b", r.buildAndAssertSuccess(b));
+            assertEquals(2, requests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testCacheKey(JenkinsRule r) {
+        String url = "https://example.com/Jenkinsfile";
+        assertEquals(url, new ScriptRequest(url, null, null, null, null, 0).getCacheKey());
+        assertEquals(url, new ScriptRequest(url, "", "X-Team", null, null, 0).getCacheKey());
+        String key = new ScriptRequest(url, null, "X-Team", "a", null, 0).getCacheKey();
+        assertEquals(key, new ScriptRequest(url, null, "x-team ", "a", null, 0).getCacheKey());
+        assertNotEquals(key, new ScriptRequest(url, null, "X-Team", "b", null, 0).getCacheKey());
+        assertNotEquals(key, new ScriptRequest(url, "text/plain", "X-Team", "a", null, 0).getCacheKey());
+        assertEquals(url, ScriptRequest.urlOf(key));
+        assertTrue(ScriptRequest.keysFor(url).test(key));
+        assertFalse(ScriptRequest.keysFor(url + ".bak").test(key));
+        assertTrue(ScriptCache.keysMatching("https://example.com/*").test(key));
+        // keyed by a secret of this Jenkins, so that values cannot be guessed from keys
+        assertFalse(key.contains(DiskCache.hash("x-team:a")));
+        assertEquals(url, ScriptCache.describe(url));
+        assertEquals(url + " (" + ScriptCache.idOf(key) + ")", ScriptCache.describe(key));
+    }
+
+    @Test
+    void testFetchFromMirrors(JenkinsRule r) throws Exception {
+        AtomicInteger primaryRequests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/primary/Jenkinsfile", exchange -> {
+            primaryRequests.incrementAndGet();
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.createContext("/slow/Jenkinsfile", exchange -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+        });
+        server.createContext("/mirror/Jenkinsfile", exchange -> {
+            byte[] body = "echo 'Hello from mirror'".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort();
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+            CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(base + "/primary/Jenkinsfile");
+            def.setMirrorUrls(base + "/mirror/Jenkinsfile");
+            p.setDefinition(def);
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("trying another mirror", b);
+            r.assertLogContains("Hello from mirror", b);
+            assertEquals(1, primaryRequests.get());
+
+            WorkflowJob q = r.jenkins.createProject(WorkflowJob.class, "q");
+            def = new CpsHttpFlowDefinition(base + "/slow/Jenkinsfile");
+            def.setMirrorUrls(base + "/mirror/Jenkinsfile");
+            def.setHedgeRequests(true);
+            q.setDefinition(def);
+            long start = System.nanoTime();
+            b = r.buildAndAssertSuccess(q);
+            r.assertLogContains("also trying another mirror", b);
+            r.assertLogContains("Hello from mirror", b);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testRunPipelineFromBundle(JenkinsRule r) throws Exception {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(zip)) {
+            out.putNextEntry(new ZipEntry("ci/Jenkinsfile"));
+            out.write("node { unpackPipelineBundle(); load('lib/helpers.groovy').hello() }"
+                    .getBytes(StandardCharsets.UTF_8));
+            out.putNextEntry(new ZipEntry("lib/helpers.groovy"));
+            out.write("def hello() { echo 'Hello from bundle' }\nreturn this".getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] bundle = zip.toByteArray();
+        AtomicInteger requests = new AtomicInteger();
+        AtomicBoolean failing = new AtomicBoolean();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/bundle.zip", exchange -> {
+            requests.incrementAndGet();
+            if (failing.get()) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                exchange.sendResponseHeaders(200, bundle.length);
+                exchange.getResponseBody().write(bundle);
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/bundle.zip";
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+            CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(url);
+            def.setBundleEntry("ci/Jenkinsfile");
+            CachingConfiguration cachingConfiguration = new CachingConfiguration(60, "");
+            cachingConfiguration.setStaleIfError(true);
+            def.setCachingConfiguration(cachingConfiguration);
+            p.setDefinition(def);
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("Hello from bundle", b);
+            String hash = b.getAction(PipelineBundleAction.class).getHash();
+            assertTrue(PipelineBundle.exists(hash));
+
+            r.assertLogContains("Hello from bundle", r.buildAndAssertSuccess(p));
+            assertEquals(1, requests.get());
+
+            Util.deleteRecursive(PipelineBundle.directory(hash).toFile());
+            b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("Pipeline bundle is gone from disk", b);
+            r.assertLogContains("Hello from bundle", b);
+            assertEquals(2, requests.get());
+
+            // a cached script without its bundle is not worth serving when the server is down
+            Util.deleteRecursive(PipelineBundle.directory(hash).toFile());
+            failing.set(true);
+            b = r.buildAndAssertStatus(Result.FAILURE, p);
+            r.assertLogContains("Pipeline bundle is gone from disk", b);
+            r.assertLogNotContains("using expired copy", b);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testLoadOldExcludedCases(JenkinsRule r) throws Exception {
+        String xml = "<flow-definition>\n"
+                + "  <definition class='" + CpsHttpFlowDefinition.class.getName() + "'>\n"
+                + "    <scriptUrl>http://example.com/Jenkinsfile</scriptUrl>\n"
+                + "    <retryCount>0</retryCount>\n"
+                + "    <cachingConfiguration>\n"
+                + "      <cachingMinutes>60</cachingMinutes>\n"
+                + "      <excludedCases>\n"
+                + "        <string-array><string>VERSION</string><string>1.*</string></string-array>\n"
+                + "        <string-array><string>BRANCH</string><string>[a-z]*</string></string-array>\n"
+                + "        <string-array><string>TAGS</string><string>a,b</string></string-array>\n"
+                + "        <string-array><string>SKIP!</string><string>yes</string></string-array>\n"
+                + "      </excludedCases>\n"
+                + "    </cachingConfiguration>\n"
+                + "  </definition>\n"
+                + "</flow-definition>\n";
+        WorkflowJob p = (WorkflowJob) r.jenkins.createProjectFromXML(
+                "p", new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        assertOldExcludedCases(p);
+        p = r.configRoundtrip(p);
+        assertOldExcludedCases(p);
+    }
+
+    private static void assertOldExcludedCases(WorkflowJob p) {
+        CachingConfiguration caching = ((CpsHttpFlowDefinition) p.getDefinition()).getCachingConfiguration();
+        assertEquals("VERSION=1.*", caching.getExcludedCasesString());
+        assertEquals("BRANCH=[a-z]* TAGS=a,b SKIP!=yes", caching.getLegacyExcludedCasesString());
+        assertTrue(caching.isExcluded(
+                CachingConfigurationTest.getEnvVars(new String[] {"VERSION"}, new String[] {"1.2"})));
+        assertTrue(caching.isExcluded(
+                CachingConfigurationTest.getEnvVars(new String[] {"BRANCH"}, new String[] {"main"})));
+        assertFalse(caching.isExcluded(
+                CachingConfigurationTest.getEnvVars(new String[] {"BRANCH"}, new String[] {"Main"})));
+        assertTrue(caching.isExcluded(
+                CachingConfigurationTest.getEnvVars(new String[] {"TAGS"}, new String[] {"a,b"})));
+        assertFalse(caching.isExcluded(CachingConfigurationTest.getEnvVars(new String[] {"TAGS"}, new String[] {"a"})));
+        assertTrue(caching.isExcluded(
+                CachingConfigurationTest.getEnvVars(new String[] {"SKIP!"}, new String[] {"yes"})));
+        // not a negated condition on SKIP
+        assertFalse(caching.isExcluded(
+                CachingConfigurationTest.getEnvVars(new String[] {"SKIP"}, new String[] {"no"})));
+    }
 }
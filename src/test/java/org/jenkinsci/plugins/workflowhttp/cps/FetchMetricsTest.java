@@ -0,0 +1,36 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+class FetchMetricsTest {
+
+    @Test
+    void testHistogram() {
+        FetchMetrics.Histogram histogram = new FetchMetrics.Histogram();
+        assertEquals(0, histogram.getPercentile(0.5));
+        for (int i = 0; i < 98; i++) {
+            histogram.record(3);
+        }
+        histogram.record(200);
+        histogram.record(100_000);
+        assertEquals(100, histogram.getCount());
+        assertEquals((98 * 3 + 200 + 100_000) / 100.0, histogram.getMean());
+        assertEquals(5, histogram.getPercentile(0.5));
+        assertEquals(5, histogram.getPercentile(0.98));
+        assertEquals(250, histogram.getPercentile(0.99));
+        assertEquals(-1, histogram.getPercentile(1));
+    }
+
+    @Test
+    void testTotalAddsUpHosts() {
+        FetchMetrics.HostMetrics before = FetchMetrics.getTotal();
+        FetchMetrics.host("http://a.example").attempts.add(2);
+        FetchMetrics.host("http://b.example").attempts.add(3);
+        FetchMetrics.host("http://b.example").latency.record(10);
+        FetchMetrics.HostMetrics after = FetchMetrics.getTotal();
+        assertEquals(before.getAttempts() + 5, after.getAttempts());
+        assertEquals(before.getLatency().getCount() + 1, after.getLatency().getCount());
+    }
+}
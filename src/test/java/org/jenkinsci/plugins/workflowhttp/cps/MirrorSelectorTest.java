@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MirrorSelectorTest {
+
+    @Test
+    void testOrder() {
+        FetchMetrics.host("https://slow.mirror.example").record(800, false);
+        FetchMetrics.host("https://fast.mirror.example").record(300, false);
+        FetchMetrics.host("https://fast.mirror.example").record(20, false);
+        for (int i = 0; i < 5; i++) {
+            FetchMetrics.host("https://failing.mirror.example").record(5, true);
+        }
+        assertEquals(
+                List.of(
+                        "https://new.mirror.example/Jenkinsfile",
+                        "https://fast.mirror.example/Jenkinsfile",
+                        "https://slow.mirror.example/Jenkinsfile",
+                        "https://failing.mirror.example/Jenkinsfile"),
+                MirrorSelector.order(List.of(
+                        "https://failing.mirror.example/Jenkinsfile",
+                        "https://slow.mirror.example/Jenkinsfile",
+                        "https://fast.mirror.example/Jenkinsfile",
+                        "https://new.mirror.example/Jenkinsfile")));
+    }
+
+    @Test
+    void testHedgeDelay() {
+        String url = "https://hedge.mirror.example/Jenkinsfile";
+        assertEquals(MirrorSelector.HEDGE_DEFAULT_DELAY, MirrorSelector.hedgeDelay(url));
+        for (int i = 0; i < MirrorSelector.HEDGE_MIN_SAMPLES; i++) {
+            FetchMetrics.host("https://hedge.mirror.example").record(i < 19 ? 40 : 400, false);
+        }
+        assertEquals(50, MirrorSelector.hedgeDelay(url));
+    }
+
+    @Test
+    void testEwma() {
+        FetchMetrics.HostMetrics metrics = FetchMetrics.host("https://ewma.mirror.example");
+        assertEquals(-1, metrics.getLatencyEwma());
+        metrics.record(100, true);
+        assertEquals(100, metrics.getLatencyEwma());
+        assertEquals(FetchMetrics.EWMA_ALPHA, metrics.getErrorEwma(), 1e-9);
+        metrics.record(200, false);
+        assertEquals(100 + FetchMetrics.EWMA_ALPHA * 100, metrics.getLatencyEwma(), 1e-9);
+        assertEquals(FetchMetrics.EWMA_ALPHA * (1 - FetchMetrics.EWMA_ALPHA), metrics.getErrorEwma(), 1e-9);
+    }
+}
@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import hudson.AbortException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PipelineBundleTest {
+
+    @TempDir
+    Path dir;
+
+    private static byte[] zip(String name, String content) throws IOException {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(zip)) {
+            out.putNextEntry(new ZipEntry(name));
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return zip.toByteArray();
+    }
+
+    private static byte[] tarGz(String name, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream out = new TarArchiveOutputStream(new GZIPOutputStream(tar))) {
+            TarArchiveEntry entry = new TarArchiveEntry(name);
+            entry.setSize(bytes.length);
+            out.putArchiveEntry(entry);
+            out.write(bytes);
+            out.closeArchiveEntry();
+        }
+        return tar.toByteArray();
+    }
+
+    @Test
+    void testUnpack() throws Exception {
+        PipelineBundle.unpack(zip("ci/Jenkinsfile", "echo 'zip'"), dir);
+        assertEquals("echo 'zip'", Files.readString(dir.resolve("ci/Jenkinsfile")));
+        PipelineBundle.unpack(tarGz("lib/helpers.groovy", "return this"), dir);
+        assertEquals("return this", Files.readString(dir.resolve("lib/helpers.groovy")));
+    }
+
+    @Test
+    void testRejectEntriesOutsideOfBundle() throws Exception {
+        Path bundle = Files.createDirectory(dir.resolve("bundle"));
+        assertThrows(AbortException.class, () -> PipelineBundle.unpack(zip("../evil.groovy", "evil"), bundle));
+        assertFalse(Files.exists(dir.resolve("evil.groovy")));
+    }
+
+    @Test
+    void testRejectOtherFormats() {
+        assertThrows(
+                AbortException.class,
+                () -> PipelineBundle.unpack("echo 'not a bundle'".getBytes(StandardCharsets.UTF_8), dir));
+    }
+}
@@ -0,0 +1,153 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.Secret;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class PipelineCacheWebhookTest {
+
+    private static String signature(String secret, String body) {
+        return "sha256="
+                + HexFormat.of()
+                        .formatHex(PipelineCacheWebhook.sign(
+                                secret.getBytes(StandardCharsets.UTF_8), body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testAuthentication(JenkinsRule r) {
+        Secret secret = Secret.fromString("s3cret");
+        byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+        assertTrue(PipelineCacheWebhook.isAuthentic(secret, body, signature("s3cret", "{}"), null));
+        assertFalse(PipelineCacheWebhook.isAuthentic(secret, body, signature("other", "{}"), null));
+        assertFalse(PipelineCacheWebhook.isAuthentic(secret, body, signature("s3cret", "{ }"), null));
+        assertTrue(PipelineCacheWebhook.isAuthentic(secret, body, null, "Bearer s3cret"));
+        assertFalse(PipelineCacheWebhook.isAuthentic(secret, body, null, "Bearer other"));
+        assertFalse(PipelineCacheWebhook.isAuthentic(secret, body, null, null));
+    }
+
+    @Test
+    void testKeysOf(JenkinsRule r) {
+        Predicate<String> keys = PipelineCacheWebhook.keysOf(JSONObject.fromObject("{"
+                + "\"urls\": [\"https://example.com/Jenkinsfile\"],"
+                + "\"prefixes\": [\"https://example.com/team/\"],"
+                + "\"patterns\": [\"https://example.org/*.groovy\"]}"));
+        assertNotNull(keys);
+        assertTrue(keys.test("https://example.com/Jenkinsfile"));
+        assertFalse(keys.test("https://example.com/Jenkinsfile.bak"));
+        assertTrue(keys.test("https://example.com/team/a/Jenkinsfile"));
+        assertTrue(keys.test("https://example.org/a/ci.groovy"));
+        assertFalse(keys.test("https://example.org/Jenkinsfile"));
+        assertNull(PipelineCacheWebhook.keysOf(JSONObject.fromObject("{\"urls\": []}")));
+    }
+
+    @Test
+    void testInvalidate(JenkinsRule r) throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        URI webhook = URI.create(r.getURL() + PipelineCacheWebhook.URL_NAME + "/");
+        String body = "{\"prefixes\": [\"https://example.com/webhook/\"]}";
+        HttpRequest.Builder request = HttpRequest.newBuilder(webhook)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        assertEquals(404, client.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode());
+
+        PipelineCacheWebhook.Configuration.get().setSecret(Secret.fromString("s3cret"));
+        CacheEntry.cache.put("https://example.com/webhook/a", new CacheEntry(Instant.MAX, "a"));
+        CacheEntry.cache.put("https://example.com/other/b", new CacheEntry(Instant.MAX, "b"));
+        assertEquals(403, client.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode());
+        assertNotNull(CacheEntry.cache.get("https://example.com/webhook/a"));
+
+        request.header(PipelineCacheWebhook.SIGNATURE_HEADER, signature("s3cret", body));
+        HttpResponse<String> response = client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertTrue(response.body().contains("https://example.com/webhook/a"), response.body());
+        assertNull(CacheEntry.cache.get("https://example.com/webhook/a"));
+        assertNotNull(CacheEntry.cache.get("https://example.com/other/b"));
+    }
+
+    @Test
+    void testRefetchWithHeadersOfJobs(JenkinsRule r) throws Exception {
+        List<String> teams = new CopyOnWriteArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/Jenkinsfile", exchange -> {
+            String team = exchange.getRequestHeaders().getFirst("X-Team");
+            teams.add(String.valueOf(team));
+            byte[] body = ("echo 'Hello " + team + "'").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/Jenkinsfile";
+            for (String team : new String[] {"a", "b"}) {
+                CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(url);
+                def.setSetKeyHeader("X-Team");
+                def.setSetValueHeader(team);
+                def.setCachingConfiguration(new CachingConfiguration(60, ""));
+                r.jenkins.createProject(WorkflowJob.class, team).setDefinition(def);
+            }
+            // fetched by a build of a, in memory with its request
+            WorkflowJob a = r.jenkins.getItemByFullName("a", WorkflowJob.class);
+            r.assertLogContains("Hello a", r.buildAndAssertSuccess(a));
+            String keyOfA = new ScriptRequest(url, null, "X-Team", "a", null, 0).getCacheKey();
+            // as if loaded from disk after a restart: only the job tells how to fetch it
+            String keyOfB = new ScriptRequest(url, null, "X-Team", "b", null, 0).getCacheKey();
+            CacheEntry.cache.put(keyOfB, new CacheEntry(Instant.MAX, "echo 'Old b'"));
+            // of a job since deleted
+            String gone = new ScriptRequest(url, null, "X-Team", "gone", null, 0).getCacheKey();
+            CacheEntry.cache.put(gone, new CacheEntry(Instant.MAX, "echo 'Old gone'"));
+            teams.clear();
+
+            PipelineCacheWebhook.Configuration.get().setSecret(Secret.fromString("s3cret"));
+            String body = "{\"urls\": [\"" + url + "\"], \"refetch\": true}";
+            HttpResponse<String> response = HttpClient.newHttpClient()
+                    .send(
+                            HttpRequest.newBuilder(URI.create(r.getURL() + PipelineCacheWebhook.URL_NAME + "/"))
+                                    .header("Content-Type", "application/json")
+                                    .header(PipelineCacheWebhook.SIGNATURE_HEADER, signature("s3cret", body))
+                                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                                    .build(),
+                            HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertTrue(response.body().contains(ScriptCache.describe(gone)), response.body());
+            for (int i = 0; i < 100 && (!isCached(keyOfA, "Hello a") || !isCached(keyOfB, "Hello b")); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(isCached(keyOfA, "Hello a"));
+            assertTrue(isCached(keyOfB, "Hello b"));
+            assertEquals(List.of("a", "b"), teams.stream().sorted().toList());
+            assertNull(CacheEntry.cache.get(gone));
+            assertNull(CacheEntry.cache.get(url));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static boolean isCached(String key, String greeting) {
+        CacheEntry entry = CacheEntry.cache.get(key);
+        return entry != null && entry.getScript().equals("echo '" + greeting + "'");
+    }
+}
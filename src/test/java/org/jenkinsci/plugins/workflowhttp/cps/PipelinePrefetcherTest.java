@@ -0,0 +1,91 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.ExtensionList;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.StringParameterDefinition;
+import hudson.util.StreamTaskListener;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class PipelinePrefetcherTest {
+
+    @Test
+    void testPrefetch(JenkinsRule r) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            byte[] body = ("echo 'Hello from " + exchange.getRequestURI().getPath() + "'")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort() + "/";
+            WorkflowJob p = r.jenkins.createProject(WorkflowJob.class, "p");
+            p.addProperty(new ParametersDefinitionProperty(new StringParameterDefinition("BRANCH", "main")));
+            CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(base + "${JOB_NAME}/${BRANCH}/Jenkinsfile");
+            def.setCachingConfiguration(new CachingConfiguration(60, ""));
+            p.setDefinition(def);
+            WorkflowJob q = r.jenkins.createProject(WorkflowJob.class, "q");
+            def = new CpsHttpFlowDefinition(base + "${BUILD_NUMBER}/Jenkinsfile");
+            def.setCachingConfiguration(new CachingConfiguration(60, ""));
+            q.setDefinition(def);
+            WorkflowJob uncached = r.jenkins.createProject(WorkflowJob.class, "uncached");
+            uncached.setDefinition(new CpsHttpFlowDefinition(base + "uncached/Jenkinsfile"));
+
+            PipelinePrefetcher prefetcher = ExtensionList.lookupSingleton(PipelinePrefetcher.class);
+            assertEquals(1, prefetcher.prefetch(Instant.now(), StreamTaskListener.fromStdout()));
+            assertEquals(1, requests.get());
+            assertNotNull(CacheEntry.cache.get(base + "p/main/Jenkinsfile"));
+
+            assertEquals(1, prefetcher.prefetch(Instant.now(), StreamTaskListener.fromStdout()));
+            assertEquals(1, requests.get());
+
+            WorkflowRun b = r.buildAndAssertSuccess(p);
+            r.assertLogContains("Fetching from cache", b);
+            r.assertLogContains("Hello from /p/main/Jenkinsfile", b);
+            assertEquals(1, requests.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testWarmWithRequestsOfJobs(JenkinsRule r) throws Exception {
+        String url = "https://example.com/Jenkinsfile";
+        for (String team : new String[] {"a", "b"}) {
+            CpsHttpFlowDefinition def = new CpsHttpFlowDefinition(url);
+            def.setSetKeyHeader("X-Team");
+            def.setSetValueHeader(team);
+            def.setCachingConfiguration(new CachingConfiguration(60, ""));
+            r.jenkins.createProject(WorkflowJob.class, team).setDefinition(def);
+        }
+        String other = "https://example.com/other/Jenkinsfile";
+        List<String> keys = PipelinePrefetcher.requestsFor(List.of(url, other)).stream()
+                .map(ScriptRequest::getCacheKey)
+                .toList();
+        assertEquals(
+                List.of(
+                        new ScriptRequest(url, null, "X-Team", "a", null, 0).getCacheKey(),
+                        new ScriptRequest(url, null, "X-Team", "b", null, 0).getCacheKey(),
+                        other),
+                keys);
+    }
+}
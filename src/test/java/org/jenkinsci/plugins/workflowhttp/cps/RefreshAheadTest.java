@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class RefreshAheadTest {
+
+    private static final long CACHING_SECONDS = 100;
+
+    @AfterEach
+    void clear() {
+        RefreshAhead.candidates.clear();
+        CacheEntry.cache.clear();
+    }
+
+    /** Caches a pipeline at {@code url} expiring in {@code seconds}, and records {@code hits} builds using it. */
+    private static ScriptRequest cached(String url, long seconds, int hits) {
+        ScriptRequest request = new ScriptRequest(url, null, null, null, null, 0);
+        CacheEntry entry = CacheEntry.cache.put(
+                request.getCacheKey(), new CacheEntry(Instant.now().plusSeconds(seconds), "echo '" + url + "'"));
+        for (int i = 0; i < hits; i++) {
+            RefreshAhead.recordHit(request, CACHING_SECONDS, entry);
+        }
+        return request;
+    }
+
+    private static Map<String, Long> due(Instant now) {
+        Map<String, Long> due = new HashMap<>();
+        RefreshAhead.due(now).forEach((candidate, delay) -> due.put(candidate.request.getUrl(), delay));
+        return due;
+    }
+
+    @Test
+    void testRefreshesPopularEntriesOnly(JenkinsRule r) {
+        cached("https://example.com/popular", 10, RefreshAhead.MIN_HITS);
+        ScriptRequest rare = cached("https://example.com/rare", 10, RefreshAhead.MIN_HITS - 1);
+        Map<String, Long> due = due(Instant.now());
+        assertEquals(Set.of("https://example.com/popular"), due.keySet());
+        assertTrue(due.get("https://example.com/popular") <= 5000, "refreshed in the first half of the time left");
+
+        RefreshAhead.recordHit(rare, CACHING_SECONDS, CacheEntry.cache.get(rare.getCacheKey()));
+        assertEquals(Set.of("https://example.com/rare"), due(Instant.now()).keySet(), "each scheduled once");
+    }
+
+    @Test
+    void testRefreshesWithinWindow(JenkinsRule r) {
+        cached("https://example.com/Jenkinsfile", 50, RefreshAhead.MIN_HITS);
+        long window = (long) (CACHING_SECONDS * RefreshAhead.WINDOW);
+        assertTrue(due(Instant.now()).isEmpty());
+        assertTrue(due(Instant.now().plusSeconds(50 - window - 5)).isEmpty());
+        Map<String, Long> due = due(Instant.now().plusSeconds(50 - window + 5));
+        assertEquals(1, due.size());
+        assertTrue(due.get("https://example.com/Jenkinsfile") <= (window - 5) * 1000 / 2 + 1000);
+    }
+
+    @Test
+    void testNewEntryStartsOver(JenkinsRule r) {
+        ScriptRequest request = cached("https://example.com/Jenkinsfile", 10, RefreshAhead.MIN_HITS - 1);
+        cached("https://example.com/Jenkinsfile", 10, 1);
+        assertTrue(due(Instant.now()).isEmpty(), "hits of the previous entry do not count");
+        RefreshAhead.recordHit(request, CACHING_SECONDS, CacheEntry.cache.get(request.getCacheKey()));
+        RefreshAhead.recordHit(request, CACHING_SECONDS, CacheEntry.cache.get(request.getCacheKey()));
+        assertEquals(1, due(Instant.now()).size());
+    }
+
+    @Test
+    void testForgetsEvictedEntries(JenkinsRule r) {
+        ScriptRequest request = cached("https://example.com/Jenkinsfile", 10, RefreshAhead.MIN_HITS);
+        CacheEntry.cache.remove(request.getCacheKey());
+        assertTrue(due(Instant.now()).isEmpty());
+        assertFalse(RefreshAhead.candidates.containsKey(request.getCacheKey()));
+    }
+
+    @Test
+    void testJittersRefreshes(JenkinsRule r) {
+        for (int i = 0; i < 20; i++) {
+            cached("https://example.com/" + i, 10, RefreshAhead.MIN_HITS);
+        }
+        Map<String, Long> due = due(Instant.now());
+        assertEquals(20, due.size());
+        for (long delay : due.values()) {
+            assertTrue(delay >= 0 && delay <= 5000, "delay " + delay);
+        }
+        assertTrue(new HashSet<>(due.values()).size() > 1, "refreshes spread over time");
+    }
+}
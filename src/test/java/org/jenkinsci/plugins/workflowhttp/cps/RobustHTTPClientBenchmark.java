@@ -0,0 +1,97 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import jenkins.benchmark.jmh.JmhBenchmarkState;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Fetches from an in-process server: through the shared connection pool, through a client opening a
+ * connection per request, and asynchronously as builds do. Runs in a Jenkins, as {@link
+ * RobustHTTPClient} requires one.
+ */
+@JmhBenchmark
+@Threads(4)
+public class RobustHTTPClientBenchmark {
+
+    public static class Server extends JmhBenchmarkState {
+        @Param({"4096", "262144"})
+        int size;
+
+        HttpServer server;
+        String url;
+        CloseableHttpClient unpooled;
+
+        @Override
+        public void setup() throws IOException {
+            byte[] body = "x".repeat(size).getBytes(StandardCharsets.UTF_8);
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.setExecutor(Executors.newFixedThreadPool(8));
+            server.createContext("/Jenkinsfile", exchange -> {
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            url = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                    + server.getAddress().getPort() + "/Jenkinsfile";
+            unpooled = HttpClients.custom()
+                    .setConnectionReuseStrategy((request, response, context) -> false)
+                    .build();
+        }
+
+        @Override
+        public void tearDown() {
+            try {
+                unpooled.close();
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
+            } finally {
+                server.stop(0);
+            }
+        }
+    }
+
+    @Benchmark
+    public void connectPooled(Server server) throws Exception {
+        new RobustHTTPClient()
+                .connect(
+                        "fetch",
+                        "fetch " + server.url,
+                        client -> client.execute(new HttpGet(server.url)),
+                        response -> EntityUtils.consume(response.getEntity()),
+                        TaskListener.NULL);
+    }
+
+    @Benchmark
+    public void connectUnpooled(Server server) throws Exception {
+        new RobustHTTPClient()
+                .connect(
+                        "fetch",
+                        "fetch " + server.url,
+                        client -> server.unpooled.execute(new HttpGet(server.url)),
+                        response -> EntityUtils.consume(response.getEntity()),
+                        TaskListener.NULL);
+    }
+
+    @Benchmark
+    public String fetchAsync(Server server) throws Exception {
+        return RobustHTTPClient.await(
+                new ScriptRequest(server.url, null, null, null, null, 0).fetchAsync(TaskListener.NULL));
+    }
+}
@@ -0,0 +1,255 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import hudson.AbortException;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class RobustHTTPClientTest {
+
+    private HttpServer server;
+
+    /** Serves {@code handler} over HTTP/1.1 at the returned URL. */
+    private String serve(HttpHandler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/Jenkinsfile", handler);
+        server.start();
+        return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + server.getAddress().getPort() + "/Jenkinsfile";
+    }
+
+    private static HttpHandler respond(int code, String body) {
+        return exchange -> {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        };
+    }
+
+    /** Responds with each of {@code codes} in turn, then with the last one, counting requests. */
+    private static HttpHandler respond(AtomicInteger requests, int... codes) {
+        return exchange -> {
+            int code = codes[Math.min(requests.getAndIncrement(), codes.length - 1)];
+            respond(code, code == 200 ? "echo 'Hello'" : "").handle(exchange);
+        };
+    }
+
+    /** Sends {@code size} bytes, with a {@code Content-Length} header or chunked, counting requests. */
+    private static HttpHandler respondWithSize(AtomicInteger requests, int size, boolean chunked) {
+        return exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(200, chunked ? 0 : size);
+            try (OutputStream body = exchange.getResponseBody()) {
+                byte[] chunk = new byte[1024];
+                for (int sent = 0; sent < size; sent += chunk.length) {
+                    body.write(chunk, 0, Math.min(chunk.length, size - sent));
+                    body.flush();
+                }
+            } catch (IOException x) {
+                // the client gave up, as it should
+            }
+        };
+    }
+
+    private static SimpleHttpResponse get(RobustHTTPClient client, String url) throws Exception {
+        return get(client, url, TaskListener.NULL);
+    }
+
+    private static SimpleHttpResponse get(RobustHTTPClient client, String url, TaskListener listener)
+            throws Exception {
+        return RobustHTTPClient.await(
+                client.connectAsync("get", "get " + url, () -> SimpleRequestBuilder.get(url).build(), listener));
+    }
+
+    /** A client retrying at once, so that tests do not wait. */
+    private static RobustHTTPClient quickClient(int attempts) {
+        RobustHTTPClient client = new RobustHTTPClient();
+        client.setStopAfterAttemptNumber(attempts);
+        client.setWaitMultiplier(1, TimeUnit.MILLISECONDS);
+        client.setWaitMaximum(10, TimeUnit.MILLISECONDS);
+        return client;
+    }
+
+    @AfterEach
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        RobustHTTPClient.HTTP2_HOSTS.clear();
+        RobustHTTPClient.http1Hosts.clear();
+    }
+
+    @Test
+    void testExponentialBackoff() {
+        RobustHTTPClient.Backoff backoff = RobustHTTPClient.Backoff.EXPONENTIAL;
+        assertEquals(200, backoff.delay(1, 0, 100, 2, 10_000));
+        assertEquals(800, backoff.delay(3, 0, 100, 2, 10_000));
+        assertEquals(10_000, backoff.delay(20, 0, 100, 2, 10_000));
+        assertEquals(300, backoff.delay(1, 0, 100, 3, 10_000));
+    }
+
+    @Test
+    void testJitteredBackoffStaysWithinBounds() {
+        for (int i = 0; i < 1000; i++) {
+            long full = RobustHTTPClient.Backoff.FULL_JITTER.delay(3, 0, 100, 2, 10_000);
+            assertTrue(full >= 0 && full <= 800, "full jitter " + full);
+            long decorrelated = RobustHTTPClient.Backoff.DECORRELATED_JITTER.delay(3, 1000, 100, 2, 2000);
+            assertTrue(decorrelated >= 100 && decorrelated <= 2000, "decorrelated jitter " + decorrelated);
+        }
+    }
+
+    @Test
+    void testRetryBudget() {
+        RobustHTTPClient.RetryBudget budget = new RobustHTTPClient.RetryBudget(2, 0.5);
+        assertTrue(budget.withdraw());
+        assertTrue(budget.withdraw());
+        assertFalse(budget.withdraw());
+        budget.deposit();
+        assertFalse(budget.withdraw());
+        budget.deposit();
+        assertTrue(budget.withdraw());
+        for (int i = 0; i < 10; i++) {
+            budget.deposit();
+        }
+        assertTrue(budget.withdraw());
+        assertTrue(budget.withdraw());
+        assertFalse(budget.withdraw());
+    }
+
+    @Test
+    void testParseRetryAfter() {
+        Instant now = Instant.parse("2015-10-21T07:28:00Z");
+        assertEquals(120_000, RobustHTTPClient.parseRetryAfter("120", now));
+        assertEquals(30_000, RobustHTTPClient.parseRetryAfter("Wed, 21 Oct 2015 07:28:30 GMT", now));
+        assertEquals(0, RobustHTTPClient.parseRetryAfter("Wed, 21 Oct 2015 07:27:00 GMT", now));
+        assertEquals(-1, RobustHTTPClient.parseRetryAfter("soon", now));
+    }
+
+    @Test
+    void testPooledClientSpeaksHttp1(JenkinsRule r) throws Exception {
+        String url = serve(respond(200, "echo 'Hello'"));
+        SimpleHttpResponse response = get(new RobustHTTPClient(), url);
+        assertEquals(200, response.getCode());
+        assertEquals("echo 'Hello'", RobustHTTPClient.getBodyText(response));
+    }
+
+    @Test
+    void testHttp2HostFallsBackToHttp1(JenkinsRule r) throws Exception {
+        String url = serve(respond(200, "echo 'Hello'"));
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        RobustHTTPClient.HTTP2_HOSTS.add(host);
+        RobustHTTPClient client = new RobustHTTPClient();
+        client.setTimeout(30, TimeUnit.SECONDS);
+        assertTrue(RobustHTTPClient.isMultiplexed("http://" + host + ":" + server.getAddress().getPort(), host));
+        assertEquals("echo 'Hello'", RobustHTTPClient.getBodyText(get(client, url)));
+        assertFalse(RobustHTTPClient.isMultiplexed("http://" + host + ":" + server.getAddress().getPort(), host));
+        assertEquals("echo 'Hello'", RobustHTTPClient.getBodyText(get(client, url)));
+    }
+
+    @Test
+    void testAsyncRetriesServerErrors(JenkinsRule r) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        String url = serve(respond(requests, 503, 500, 200));
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SimpleHttpResponse response = get(quickClient(5), url, new StreamTaskListener(log, StandardCharsets.UTF_8));
+        assertEquals(200, response.getCode());
+        assertEquals(3, requests.get());
+        String text = log.toString(StandardCharsets.UTF_8);
+        assertEquals(2, text.split("Retrying get after", -1).length - 1, text);
+    }
+
+    @Test
+    void testAsyncStopsAfterAttemptNumber(JenkinsRule r) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        String url = serve(respond(requests, 502));
+        IOException x = assertThrows(IOException.class, () -> get(quickClient(3), url));
+        assertTrue(x.getMessage().contains("502"), x.getMessage());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    void testAsyncDoesNotRetryClientErrors(JenkinsRule r) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        String url = serve(respond(requests, 404));
+        AbortException x = assertThrows(AbortException.class, () -> get(quickClient(5), url));
+        assertTrue(x.getMessage().contains("404"), x.getMessage());
+        assertEquals(1, requests.get());
+        assertFalse(RobustHTTPClient.isRetryable(new RobustHTTPClient.HttpStatusException("", 403, -1)));
+        assertTrue(RobustHTTPClient.isRetryable(new RobustHTTPClient.HttpStatusException("", 429, -1)));
+        assertTrue(RobustHTTPClient.isRetryable(new RobustHTTPClient.HttpStatusException("", 408, -1)));
+    }
+
+    @Test
+    void testAsyncStopsRetryingWhenBudgetIsExhausted(JenkinsRule r) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        String url = serve(respond(requests, 503));
+        int withdrawn = 0;
+        while (RobustHTTPClient.retryBudget.withdraw()) {
+            withdrawn++;
+        }
+        try {
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            assertThrows(
+                    IOException.class,
+                    () -> get(quickClient(5), url, new StreamTaskListener(log, StandardCharsets.UTF_8)));
+            assertEquals(1, requests.get());
+            String text = log.toString(StandardCharsets.UTF_8);
+            assertTrue(text.contains("Not retrying get: too many retries in progress"), text);
+        } finally {
+            for (int i = 0; i < withdrawn * 10; i++) {
+                RobustHTTPClient.retryBudget.deposit();
+            }
+        }
+    }
+
+    @Test
+    void testRejectsResponseLargerThanContentLengthAllows(JenkinsRule r) throws Exception {
+        assertResponseTooLarge(false);
+    }
+
+    @Test
+    void testRejectsStreamedResponseOnceTooLarge(JenkinsRule r) throws Exception {
+        assertResponseTooLarge(true);
+    }
+
+    /** Too large a response fails at once, is not retried, and does not count against the host. */
+    private void assertResponseTooLarge(boolean chunked) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        String url = serve(respondWithSize(requests, 64 * 1024, chunked));
+        RobustHTTPClient client = quickClient(5);
+        client.setMaxResponseSize(4096);
+        int attempts = CircuitBreaker.FAILURE_THRESHOLD + 1;
+        for (int i = 1; i <= attempts; i++) {
+            assertThrows(RobustHTTPClient.ResponseTooLargeException.class, () -> get(client, url));
+            assertEquals(i, requests.get());
+        }
+        CircuitBreaker breaker = CircuitBreaker.forHost(RobustHTTPClient.hostOf(new URL(url)));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        client.setMaxResponseSize(64 * 1024);
+        assertEquals(64 * 1024, get(client, url).getBodyBytes().length);
+    }
+}
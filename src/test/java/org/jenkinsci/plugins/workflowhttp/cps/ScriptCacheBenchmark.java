@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import jenkins.benchmark.jmh.JmhBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/** Lookups and insertions in the cache from many builds starting at once. */
+@JmhBenchmark
+@Threads(8)
+public class ScriptCacheBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Cache {
+        @Param({"100", "1000"})
+        int urls;
+
+        ScriptCache cache;
+        String[] keys;
+        CacheEntry[] entries;
+
+        @Setup
+        public void setup() {
+            cache = new ScriptCache(urls, Long.MAX_VALUE);
+            keys = new String[urls];
+            entries = new CacheEntry[urls];
+            for (int i = 0; i < urls; i++) {
+                keys[i] = "https://example.com/" + i + "/Jenkinsfile";
+                entries[i] = new CacheEntry(Instant.MAX, ("echo 'pipeline " + i + "'\n").repeat(100));
+                cache.put(keys[i], entries[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    public CacheEntry get(Cache state) {
+        return state.cache.get(state.keys[ThreadLocalRandom.current().nextInt(state.urls)]);
+    }
+
+    @Benchmark
+    public CacheEntry put(Cache state) {
+        int i = ThreadLocalRandom.current().nextInt(state.urls);
+        return state.cache.put(state.keys[i], state.entries[i]);
+    }
+
+    /** Nine lookups for each insertion, like builds mostly hitting the cache. */
+    @Benchmark
+    public CacheEntry mixed(Cache state) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(state.urls);
+        return random.nextInt(10) == 0
+                ? state.cache.put(state.keys[i], state.entries[i])
+                : state.cache.get(state.keys[i]);
+    }
+}
@@ -0,0 +1,220 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+@WithJenkins
+class ScriptCacheTest {
+
+    private static CacheEntry entry(String script) {
+        return new CacheEntry(Instant.now().plusSeconds(60), script);
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsedOverMaxEntries() {
+        ScriptCache cache = new ScriptCache(2, Long.MAX_VALUE);
+        cache.put("a", entry("a"));
+        cache.put("b", entry("b"));
+        cache.get("a");
+        cache.put("c", entry("c"));
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    void testEvictsOverMaxBytes() {
+        ScriptCache cache = new ScriptCache(100, 20);
+        cache.put("a", entry("12345"));
+        cache.put("b", entry("67890"));
+        assertEquals(20, cache.getBytes());
+        cache.put("c", entry("abcde"));
+        assertNull(cache.get("a"));
+        assertEquals(2, cache.size());
+        assertEquals(20, cache.getBytes());
+    }
+
+    @Test
+    void testReplaceAndRemoveKeepSizeAccurate() {
+        ScriptCache cache = new ScriptCache(100, Long.MAX_VALUE);
+        CacheEntry first = entry("12345");
+        cache.put("a", first);
+        cache.put("a", entry("1"));
+        assertEquals(2, cache.getBytes());
+        assertFalse(cache.remove("a", first));
+        cache.remove("a");
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    void testSharesIdenticalScripts() {
+        ScriptCache cache = new ScriptCache(100, Long.MAX_VALUE);
+        CacheEntry a = cache.put("a", entry("12345"));
+        CacheEntry b = cache.put("b", entry("12345"));
+        assertSame(a.blob, b.blob);
+        assertEquals(1, cache.getScriptCount());
+        assertEquals(10, cache.getBytes());
+        cache.remove("a");
+        assertEquals(10, cache.getBytes());
+        cache.put("b", entry("1"));
+        assertEquals(1, cache.getScriptCount());
+        assertEquals(2, cache.getBytes());
+    }
+
+    @Test
+    void testInvalidateByGlob(@TempDir File dir) {
+        ScriptCache cache = new ScriptCache(100, Long.MAX_VALUE, new DiskCache(dir));
+        cache.put("https://example.com/a/Jenkinsfile", entry("a"));
+        cache.put("https://example.com/b/Jenkinsfile", entry("b"));
+        cache.put("https://example.org/a/Jenkinsfile", entry("c"));
+        assertEquals(
+                Set.of("https://example.com/a/Jenkinsfile", "https://example.com/b/Jenkinsfile"),
+                cache.invalidate(ScriptCache.keysMatching("https://example.com/*")));
+        assertEquals(1, cache.size());
+        assertNull(new ScriptCache(100, Long.MAX_VALUE, new DiskCache(dir)).get("https://example.com/a/Jenkinsfile"));
+        assertNotNull(cache.get("https://example.org/a/Jenkinsfile"));
+    }
+
+    @Test
+    void testListCountsHits() {
+        ScriptCache cache = new ScriptCache(100, Long.MAX_VALUE);
+        cache.put("a", entry("a"));
+        cache.put("b", entry("b"));
+        cache.recordHit("b");
+        cache.recordHit("b");
+        cache.recordHit("missing");
+        List<ScriptCache.Info> list = cache.list();
+        assertEquals(2, list.size());
+        assertEquals("b", list.get(1).getKey());
+        assertEquals(2, list.get(1).getHits());
+        cache.remove("b");
+        cache.put("b", entry("b"));
+        assertEquals(0, cache.list().get(1).getHits());
+    }
+
+    @Test
+    void testRemoveExpired() {
+        ScriptCache cache = new ScriptCache(100, Long.MAX_VALUE);
+        cache.put("old", new CacheEntry(Instant.now().minusSeconds(1), "old"));
+        cache.put("new", entry("new"));
+        assertEquals(1, cache.removeExpired(Instant.now()));
+        assertNull(cache.get("old"));
+        assertNotNull(cache.get("new"));
+    }
+
+    @Test
+    void testCompressedEntries() {
+        String script = "echo 'Hello from HTTP'\n".repeat(100);
+        CacheEntry compressed = new CacheEntry(Instant.now().plusSeconds(60), script, "\"v1\"", null, true);
+        assertTrue(compressed.isCompressed());
+        assertTrue(compressed.getSize() < script.length());
+        assertEquals(script, compressed.getScript());
+        // hits share the decompressed script
+        assertSame(compressed.getScript(), compressed.getScript());
+        assertEquals(script, compressed.withExpirationDate(Instant.now()).getScript());
+        assertFalse(new CacheEntry(Instant.now(), "echo 1", null, null, true).isCompressed());
+    }
+
+    @Test
+    void testLoadsEntriesFromDiskAfterRestart(@TempDir File dir) {
+        CacheEntry saved = new CacheEntry(Instant.now().plusSeconds(60), "echo 'hi'", "\"v1\"", null);
+        new ScriptCache(100, Long.MAX_VALUE, new DiskCache(dir)).put("a", saved);
+
+        ScriptCache restarted = new ScriptCache(100, Long.MAX_VALUE, new DiskCache(dir));
+        CacheEntry loaded = restarted.get("a");
+        assertNotNull(loaded);
+        assertEquals(saved.getScript(), loaded.getScript());
+        assertEquals(saved.etag, loaded.etag);
+        assertEquals(saved.expirationDate.toEpochMilli(), loaded.expirationDate.toEpochMilli());
+        assertEquals(1, restarted.size());
+
+        restarted.remove("a");
+        assertNull(new ScriptCache(100, Long.MAX_VALUE, new DiskCache(dir)).get("a"));
+    }
+
+    @Test
+    void testSweepsDiskCacheFromIndex(@TempDir File dir) throws Exception {
+        DiskCache before = new DiskCache(dir);
+        before.save("old", new CacheEntry(Instant.now().minusSeconds(1), "old"));
+        before.save("new", entry("new"));
+        Files.writeString(new File(dir, "unreadable.xml").toPath(), "<nonsense");
+
+        DiskCache restarted = new DiskCache(dir);
+        restarted.deleteExpired(Instant.now());
+        assertEquals(Set.of(DiskCache.hash("new") + ".xml"), Set.of(dir.list()));
+        restarted.save("newer", entry("newer"));
+        assertEquals(List.of("newer"), restarted.deleteMatching("newer"::equals));
+        assertEquals(List.of(), restarted.deleteMatching("old"::equals));
+        assertNotNull(restarted.load("new"));
+        restarted.deleteExpired(Instant.now().plusSeconds(3600));
+        assertNull(restarted.load("new"));
+    }
+
+    @Test
+    void testConcurrentRefreshesShareOneFetch(JenkinsRule r) throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/Jenkinsfile", exchange -> {
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "echo 'slow'".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort() + "/Jenkinsfile";
+            ScriptCache cache = new ScriptCache(100, Long.MAX_VALUE);
+            List<ByteArrayOutputStream> logs = new ArrayList<>();
+            List<CompletableFuture<CacheEntry>> fetches = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                logs.add(log);
+                fetches.add(cache.refreshAsync(
+                        new ScriptRequest(url, null, null, null, null, 0),
+                        60,
+                        Instant.now(),
+                        new StreamTaskListener(log, StandardCharsets.UTF_8)));
+            }
+            for (CompletableFuture<CacheEntry> fetch : fetches) {
+                assertEquals("echo 'slow'", RobustHTTPClient.await(fetch).getScript());
+            }
+            assertEquals(1, requests.get());
+            for (ByteArrayOutputStream log : logs.subList(1, logs.size())) {
+                String text = log.toString(StandardCharsets.UTF_8);
+                assertTrue(text.contains("Concurrent fetch of " + url + " completed"), text);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+}
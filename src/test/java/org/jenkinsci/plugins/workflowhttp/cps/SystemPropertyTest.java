@@ -0,0 +1,39 @@
+package org.jenkinsci.plugins.workflowhttp.cps;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.jenkinsci.plugins.workflowhttp.cps.RobustHTTPClient.Backoff;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SystemPropertyTest {
+
+    private static final String NAME = SystemPropertyTest.class.getName() + ".VALUE";
+
+    @AfterEach
+    void clear() {
+        System.clearProperty(NAME);
+    }
+
+    @Test
+    void testGetDouble() {
+        assertEquals(0.2, SystemProperty.getDouble(NAME, 0.2, 0, 1));
+        System.setProperty(NAME, " 0.5 ");
+        assertEquals(0.5, SystemProperty.getDouble(NAME, 0.2, 0, 1));
+        System.setProperty(NAME, "0,5");
+        assertEquals(0.2, SystemProperty.getDouble(NAME, 0.2, 0, 1));
+        System.setProperty(NAME, "2");
+        assertEquals(0.2, SystemProperty.getDouble(NAME, 0.2, 0, 1));
+        System.setProperty(NAME, "NaN");
+        assertEquals(0.2, SystemProperty.getDouble(NAME, 0.2, 0, 1));
+    }
+
+    @Test
+    void testGetEnum() {
+        assertEquals(Backoff.FULL_JITTER, SystemProperty.getEnum(NAME, Backoff.FULL_JITTER));
+        System.setProperty(NAME, "exponential");
+        assertEquals(Backoff.EXPONENTIAL, SystemProperty.getEnum(NAME, Backoff.FULL_JITTER));
+        System.setProperty(NAME, "FULL-JITTER");
+        assertEquals(Backoff.FULL_JITTER, SystemProperty.getEnum(NAME, Backoff.FULL_JITTER));
+    }
+}